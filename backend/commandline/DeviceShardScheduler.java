@@ -0,0 +1,202 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.commandline;
+
+import com.google.uicd.backend.core.exceptions.UicdDeviceException;
+import com.google.uicd.backend.core.uicdactions.ActionContext.PlayStatus;
+import com.google.uicd.backend.core.uicdactions.ActionExecutionResult;
+import com.google.uicd.backend.core.uicdactions.UicdExecutors;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Shards test files across devices, with one worker per device.
+ *
+ * <p>All workers take the next file from one shared queue, so a device that finishes early picks
+ * up the files the slower devices have not started yet. A worker whose device is lost stops taking
+ * files, its file goes back to the queue and the other devices run the rest. Idle workers wait
+ * until no file is running anymore, since a lost device may still give one back.
+ */
+class DeviceShardScheduler {
+
+  /** Plays one test file on the device at the given index of the device list. */
+  interface TestRunner {
+    ActionExecutionResult run(String fileName, int deviceIndex) throws Exception;
+  }
+
+  /** Receives the result of each file, called from the worker threads one at a time. */
+  interface ResultHandler {
+    void onResult(String fileName, ActionExecutionResult result) throws IOException;
+  }
+
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  // Times a file is given to another device after a device loss, then it fails instead of taking
+  // the remaining devices down too.
+  private static final int MAX_DEVICE_LOSSES_PER_FILE = 2;
+
+  private final List<String> deviceIds;
+
+  DeviceShardScheduler(List<String> deviceIds) {
+    this.deviceIds = deviceIds;
+  }
+
+  /** Runs all the files and returns when they are done, or when all the devices are lost. */
+  void run(List<String> fileNames, TestRunner runner, ResultHandler handler)
+      throws IOException {
+    FileQueue pendingFiles = new FileQueue(fileNames);
+    List<Thread> workers = new ArrayList<>();
+    List<IOException> handlerErrors = new ArrayList<>();
+    for (int i = 0; i < deviceIds.size(); i++) {
+      int deviceIndex = i;
+      workers.add(
+          UicdExecutors.startThread(
+              "uicd-cli-" + deviceIds.get(i),
+              () -> runWorker(deviceIndex, pendingFiles, runner, handler, handlerErrors)));
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the tests.");
+      }
+    }
+    for (String fileName : pendingFiles.remaining()) {
+      handler.onResult(fileName, failedResult("Not run, no device left."));
+    }
+    if (!handlerErrors.isEmpty()) {
+      throw handlerErrors.get(0);
+    }
+  }
+
+  private void runWorker(
+      int deviceIndex,
+      FileQueue pendingFiles,
+      TestRunner runner,
+      ResultHandler handler,
+      List<IOException> handlerErrors) {
+    String deviceId = deviceIds.get(deviceIndex);
+    String fileName;
+    while ((fileName = pendingFiles.take()) != null) {
+      logger.info(String.format("Device %s runs %s", deviceId, fileName));
+      ActionExecutionResult result;
+      try {
+        result = runner.run(fileName, deviceIndex);
+      } catch (UicdDeviceException e) {
+        logger.warning(String.format("Device %s lost: %s", deviceId, e.getMessage()));
+        // Give the file to another device.
+        if (pendingFiles.retry(fileName)) {
+          return;
+        }
+        result =
+            failedResult(
+                String.format(
+                    "Device lost %d times running this test, last error: %s",
+                    MAX_DEVICE_LOSSES_PER_FILE + 1, e.getMessage()));
+        reportResult(fileName, result, handler, handlerErrors);
+        pendingFiles.done();
+        return;
+      } catch (Exception e) {
+        logger.warning(String.format("Test %s failed: %s", fileName, e.getMessage()));
+        result = failedResult("Exception encountered: " + e.getMessage());
+      }
+      reportResult(fileName, result, handler, handlerErrors);
+      pendingFiles.done();
+    }
+  }
+
+  private static void reportResult(
+      String fileName,
+      ActionExecutionResult result,
+      ResultHandler handler,
+      List<IOException> handlerErrors) {
+    synchronized (handler) {
+      try {
+        handler.onResult(fileName, result);
+      } catch (IOException e) {
+        handlerErrors.add(e);
+      }
+    }
+  }
+
+  private static ActionExecutionResult failedResult(String output) {
+    ActionExecutionResult result = new ActionExecutionResult();
+    result.setRegularOutput(output);
+    result.setPlayStatus(PlayStatus.FAIL);
+    return result;
+  }
+
+  /** Files waiting to run, and the number of files running right now. */
+  private static class FileQueue {
+    private final Queue<String> files;
+    private final Map<String, Integer> deviceLosses = new HashMap<>();
+    private int running = 0;
+
+    FileQueue(List<String> fileNames) {
+      files = new ArrayDeque<>(fileNames);
+    }
+
+    /**
+     * Returns the next file, waiting while files are running and may be given back. Returns null
+     * once all the files are done.
+     */
+    synchronized String take() {
+      while (files.isEmpty() && running > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      String fileName = files.poll();
+      if (fileName != null) {
+        running++;
+      }
+      return fileName;
+    }
+
+    /** Marks a file taken from the queue as done. */
+    synchronized void done() {
+      running--;
+      notifyAll();
+    }
+
+    /**
+     * Puts back a file whose device was lost, returns false if the file already lost too many
+     * devices. The file is still running in that case, and has to be marked as done.
+     */
+    synchronized boolean retry(String fileName) {
+      int losses = deviceLosses.merge(fileName, 1, Integer::sum);
+      if (losses > MAX_DEVICE_LOSSES_PER_FILE) {
+        return false;
+      }
+      files.add(fileName);
+      done();
+      return true;
+    }
+
+    synchronized List<String> remaining() {
+      return new ArrayList<>(files);
+    }
+  }
+}
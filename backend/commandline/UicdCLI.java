@@ -17,17 +17,15 @@ package com.google.uicd.backend.commandline;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.db.ActionEntity;
 import com.google.uicd.backend.core.db.ActionStorageManager;
 import com.google.uicd.backend.core.db.FileSystemActionStorageManager;
+import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
 import com.google.uicd.backend.core.devicesdriver.DevicesDriverManager;
 import com.google.uicd.backend.core.exceptions.UicdActionException;
 import com.google.uicd.backend.core.exceptions.UicdDeviceException;
 import com.google.uicd.backend.core.exceptions.UicdException;
-import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
 import com.google.uicd.backend.core.uicdactions.ActionContext;
 import com.google.uicd.backend.core.uicdactions.ActionContext.PlayMode;
 import com.google.uicd.backend.core.uicdactions.ActionContext.PlayStatus;
@@ -35,6 +33,7 @@ import com.google.uicd.backend.core.uicdactions.ActionExecutionResult;
 import com.google.uicd.backend.core.uicdactions.ActionPlayer;
 import com.google.uicd.backend.core.uicdactions.BaseAction;
 import com.google.uicd.backend.core.utils.UicdCoreDelegator;
+import com.google.uicd.backend.recorder.utils.JsonUtilEx;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -44,6 +43,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.LogManager;
@@ -96,60 +96,106 @@ public class UicdCLI {
       if (Files.notExists(resultFolder)) {
         Files.createDirectories(resultFolder);
       }
-      int totalCnt = 0;
-      int passedCnt = 0;
-      for (String fileName : getFilenamesWithFullPathFromPath(inputFilePath)) {
-        // user mode, re-direct the output to log file..
-        if (!argsObj.isScreenOutputMode()) {
-          setRedirectOutputToFile(logFolder);
-        }
+      List<String> deviceIdList = argsObj.getDevicesIdList();
+      PlayMode playMode =
+          argsObj.getPlayMode().isEmpty()
+              ? PlayMode.SINGLE
+              : PlayMode.valueOf(argsObj.getPlayMode());
+      List<String> fileNames = getFilenamesWithFullPathFromPath(inputFilePath);
+      AtomicInteger totalCnt = new AtomicInteger();
+      AtomicInteger passedCnt = new AtomicInteger();
+      DeviceShardScheduler.ResultHandler resultHandler =
+          (fileName, actionExecutionResult) -> {
+            // Valid uicd test case
+            if (actionExecutionResult.getPlayStatus() != PlayStatus.SKIPPED) {
+              totalCnt.incrementAndGet();
+            }
+            if (actionExecutionResult.getPlayStatus() == PlayStatus.PASS) {
+              passedCnt.incrementAndGet();
+            }
+            writeTestResult(inputFilePath, resultFolder, fileName, actionExecutionResult);
+          };
 
-        ActionExecutionResult actionExecutionResult =
-            playActionFromFile(
+      // Devices are initialized once, and stay ready between the test files.
+      DevicesDriverManager devicesDriverManager = DevicesDriverManager.getInstance();
+      devicesDriverManager.initDevicesList(deviceIdList);
+      devicesDriverManager.startMultiXmlDumperServer(deviceIdList, true);
+      devicesDriverManager
+          .getXmlDumperDriverList()
+          .forEach(AndroidDeviceDriver::setScaleByDeviceType);
+      try {
+        if (playMode == PlayMode.SINGLE && deviceIdList.size() > 1) {
+          // Each test only needs one device, run them on all the devices at the same time.
+          if (!argsObj.isScreenOutputMode()) {
+            setRedirectOutputToFile(logFolder);
+          }
+          new DeviceShardScheduler(deviceIdList)
+              .run(
+                  fileNames,
+                  (fileName, deviceIndex) ->
+                      playActionFromFile(
+                          fileName, playMode, deviceIndex, argsObj.getGlobalVariables()),
+                  resultHandler);
+        } else {
+          for (String fileName : fileNames) {
+            // user mode, re-direct the output to log file..
+            if (!argsObj.isScreenOutputMode()) {
+              setRedirectOutputToFile(logFolder);
+            }
+            resultHandler.onResult(
                 fileName,
-                argsObj.getDevicesIdList(),
-                argsObj.getPlayMode(),
-                argsObj.getGlobalVariables());
-
-        // Valid uicd test case
-        if (actionExecutionResult.getPlayStatus() != PlayStatus.SKIPPED) {
-          totalCnt++;
-        }
-        if (actionExecutionResult.getPlayStatus() == PlayStatus.PASS) {
-          passedCnt++;
+                playActionFromFile(
+                    fileName,
+                    playMode,
+                    devicesDriverManager.getSelectedDeviceIndex(),
+                    argsObj.getGlobalVariables()));
+          }
         }
-        System.out.println(
-            String.format(
-                "Test(%s) finished. \n Result: %s",
-                fileName, getColorStatusStr(actionExecutionResult.getPlayStatus())));
-        // We need to maintain the subdir for result json files for each test to avoid conflicts.
-        // example:
-        // input path is "tests/" and containing file structure is:
-        //   tests/sub_dir1/dummytest1
-        //   tests/sub_dir2/dummytest2
-        //   tests/dummytest3
-        // output path "output/result/" file structure should be :
-        //   output/result/sub_dir1/dummytest1/action_execution_result
-        //   output/result/sub_dir2/dummytest2/action_execution_result
-        //   output/result/dummytest3/action_execution_result
-        String subDirPath =
-            getRelativePath(
-                new File(inputFilePath).getAbsolutePath(), new File(fileName).getAbsolutePath());
-        Path testResultDir = Paths.get(resultFolder.toString(), subDirPath);
-        if (Files.notExists(testResultDir)) {
-          Files.createDirectories(testResultDir);
-        }
-        writeContentsToFile(
-            Paths.get(testResultDir.toString(), "action_execution_result").toString(),
-            actionExecutionResult.toJson());
+      } finally {
+        devicesDriverManager.stopMultiXmlDumperServer(deviceIdList);
       }
 
-      printTestResultSummary(totalCnt, passedCnt);
+      printTestResultSummary(totalCnt.get(), passedCnt.get());
     } catch (IOException | UicdException | ParseException e) {
       System.out.println("ERROR! Exception encountered: " + e.getMessage());
     }
   }
 
+  private static void writeTestResult(
+      String inputFilePath,
+      Path resultFolder,
+      String fileName,
+      ActionExecutionResult actionExecutionResult)
+      throws IOException {
+    System.out.println(
+        String.format(
+            "Test(%s) finished. \n Result: %s",
+            fileName, getColorStatusStr(actionExecutionResult.getPlayStatus())));
+    // We need to maintain the subdir for result json files for each test to avoid conflicts.
+    // example:
+    // input path is "tests/" and containing file structure is:
+    //   tests/sub_dir1/dummytest1
+    //   tests/sub_dir2/dummytest2
+    //   tests/dummytest3
+    // output path "output/result/" file structure should be :
+    //   output/result/sub_dir1/dummytest1/action_execution_result
+    //   output/result/sub_dir2/dummytest2/action_execution_result
+    //   output/result/dummytest3/action_execution_result
+    String subDirPath =
+        getRelativePath(
+            new File(inputFilePath).getAbsolutePath(), new File(fileName).getAbsolutePath());
+    Path testResultDir = Paths.get(resultFolder.toString(), subDirPath);
+    if (Files.notExists(testResultDir)) {
+      Files.createDirectories(testResultDir);
+    }
+    boolean gzip = UicdConfig.getInstance().isCompressTestResults();
+    Path resultFile =
+        Paths.get(
+            testResultDir.toString(),
+            gzip ? "action_execution_result.gz" : "action_execution_result");
+    writeResultToFile(resultFile, actionExecutionResult, gzip);
+  }
+
   private static void printTestResultSummary(int totalCnt, int passedCnt) {
     System.out.println("======================Uicd tests final result=========================");
     System.out.println(
@@ -177,12 +223,10 @@ public class UicdCLI {
     return fileList;
   }
 
+  /** Plays the test file on the devices initialized by {@link DevicesDriverManager}. */
   private static ActionExecutionResult playActionFromFile(
-      String fullPath,
-      List<String> deviceIdList,
-      String playMode,
-      Map<String, String> globalVariablesMap)
-      throws IOException, UicdExternalCommandException, UicdDeviceException, UicdActionException {
+      String fullPath, PlayMode playMode, int deviceIndex, Map<String, String> globalVariablesMap)
+      throws IOException, UicdDeviceException, UicdActionException {
 
     ActionStorageManager actionStorageManager = new FileSystemActionStorageManager();
     String jsonContent = new String(Files.readAllBytes(Paths.get(fullPath)), UTF_8);
@@ -195,18 +239,17 @@ public class UicdCLI {
       return actionExecutionResult;
     }
     DevicesDriverManager devicesDriverManager = DevicesDriverManager.getInstance();
-    devicesDriverManager.initDevicesList(deviceIdList);
-    devicesDriverManager.startMultiXmlDumperServer(deviceIdList, true);
-
     ActionContext actionContext = new ActionContext();
-    actionContext.setPlayMode(playMode.isEmpty() ? PlayMode.SINGLE : PlayMode.valueOf(playMode));
+    actionContext.setPlayMode(playMode);
+    actionContext.setCurrentDeviceIndex(deviceIndex);
+    if (playMode == PlayMode.SINGLE) {
+      // Compound actions read the index from the context, a leaf action plays on its own index.
+      action.setDeviceIndex(deviceIndex);
+    }
     globalVariablesMap.forEach((k, v) -> actionContext.getGlobalVariableMap().addVariable(k, v));
     ActionPlayer actionPlayer =
         new ActionPlayer(devicesDriverManager.getXmlDumperDriverList(), actionContext);
-    actionPlayer.initDevicesDisplayScale();
-    ActionExecutionResult actionExecutionResult = actionPlayer.playAction(action);
-    devicesDriverManager.stopMultiXmlDumperServer(deviceIdList);
-    return actionExecutionResult;
+    return actionPlayer.playAction(action);
   }
 
   private static BaseAction tryGetActionByStr(
@@ -267,20 +310,19 @@ public class UicdCLI {
     return "";
   }
 
-  private static void writeContentsToFile(String filepath, String contents) throws IOException {
+  private static void writeResultToFile(
+      Path filepath, ActionExecutionResult actionExecutionResult, boolean gzip)
+      throws IOException {
     System.out.println("Writing contents to: " + filepath);
-    Files.createDirectories(Paths.get(new File(filepath).getParent()));
-    Files.write(Paths.get(filepath), contents.getBytes(UTF_8));
+    Files.createDirectories(filepath.getParent());
+    actionExecutionResult.writeJson(Files.newOutputStream(filepath), gzip);
   }
 
   // Todo(tccyp): change to JsonUtilEx.fromJson.
   private static <T extends Object> T fromJsonEx(String jsonDataString, TypeReference<T> typeRef) {
-    ObjectMapper mapper = new ObjectMapper();
     T obj = null;
     try {
-      JavaTimeModule module = new JavaTimeModule();
-      mapper.registerModule(module);
-      obj = mapper.readValue(jsonDataString, typeRef);
+      obj = JsonUtilEx.readerFor(typeRef).readValue(jsonDataString);
     } catch (IOException e) {
       System.err.println("Error while converting from json: " + e.getMessage());
     }
@@ -44,6 +44,7 @@ import com.google.uicd.backend.core.xmlparser.Position;
 import com.google.uicd.backend.recorder.services.ProjectManager;
 import com.google.uicd.backend.recorder.websocket.minicap.MinicapUtil;
 import com.google.uicd.backend.recorder.websocket.minicap.jetty.MinicapServerManager;
+import com.google.uicd.backend.recorder.websocket.minicap.jetty.MinicapStreamMetrics;
 import com.google.uicd.backend.recorder.workflowmgr.WorkflowManager;
 import java.awt.Point;
 import java.util.ArrayList;
@@ -607,6 +608,13 @@ public class MainController {
     };
   }
 
+  // Per device minicap stream health, also available through JMX.
+  @CrossOrigin(origins = "*")
+  @RequestMapping("/getMinicapMetrics")
+  public Callable<List<MinicapStreamMetrics>> getMinicapMetrics() {
+    return () -> MinicapServerManager.getInstance().getMetrics();
+  }
+
   @CrossOrigin(origins = "*")
   @RequestMapping("/getCurrentMasterDevice")
   public Callable<String> getCurrentMasterDevice() {
@@ -65,7 +65,7 @@ public abstract class TestHistoryRecord {
         testHistoryEntity.getProjectId(),
         testHistoryEntity.getUserId(),
         testHistoryEntity.getGroupId(),
-        testHistoryEntity.getTestDetails(),
+        testHistoryEntity.readTestDetails(),
         testHistoryEntity.getCreatedBy(),
         testHistoryEntity.getCreatedAt());
   }
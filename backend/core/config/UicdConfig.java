@@ -64,6 +64,11 @@ public class UicdConfig {
   private static final String XMLDUMPER_PACKAGE_PREFIX = "xmldumper_package_prefix";
   private static final String REFERENCE_IMAGE_STORAGE = "reference_image_storage";
   private static final String UICD_LOCAL_MODE = "uicd_local_mode";
+  private static final String ML_WORKER_POOL_SIZE = "ml_worker_pool_size";
+  private static final String MINICAP_WEB_SERVER_PORT = "minicap_web_server_port";
+  private static final String ADAPTIVE_WAIT_AFTER_ACTION = "adaptive_wait_after_action";
+  private static final String COMPRESS_TEST_RESULTS = "compress_test_results";
+  private static final String ACTION_CACHE_MAX_SIZE_MB = "action_cache_max_size_mb";
 
   private String adbShellPath = "adb";
   private String currentUser = System.getProperty("user.name");
@@ -75,6 +80,8 @@ public class UicdConfig {
   private int mysqlPort = 3308;
   private String mysqlConnectionString = "";
   private int adbForwardStartPort = 6790;
+  // All the devices share one minicap websocket server.
+  private int minicapWebServerPort = 9002;
   private Level logLevel = Level.INFO;
   private String xmlDumperApkVersion = "1.0.2";
   // For internal version localMode will be overwrite to false in start.sh when start UICD. Open
@@ -87,6 +94,18 @@ public class UicdConfig {
 
   private String referenceImageStorage = "local";
 
+  // Number of long lived python processes used by the ML image validation.
+  private int mlWorkerPoolSize = 1;
+
+  // Stop waiting after a UI action once the screen is stable, the action delay is the maximum.
+  private boolean adaptiveWaitAfterAction = true;
+
+  // Write the CLI execution results gzip compressed.
+  private boolean compressTestResults = false;
+
+  // Upper bound of the memory used by the loaded actions.
+  private int actionCacheMaxSizeMb = 512;
+
   public static UicdConfig getInstance() {
     return instance;
   }
@@ -192,6 +211,22 @@ public class UicdConfig {
     if (configVars.containsKey(UICD_LOCAL_MODE)) {
       this.localMode = Boolean.parseBoolean(configVars.get(UICD_LOCAL_MODE));
     }
+    if (configVars.containsKey(MINICAP_WEB_SERVER_PORT)) {
+      this.minicapWebServerPort = Integer.parseInt(configVars.get(MINICAP_WEB_SERVER_PORT));
+    }
+    if (configVars.containsKey(ML_WORKER_POOL_SIZE)) {
+      this.mlWorkerPoolSize = Integer.parseInt(configVars.get(ML_WORKER_POOL_SIZE));
+    }
+    if (configVars.containsKey(ADAPTIVE_WAIT_AFTER_ACTION)) {
+      this.adaptiveWaitAfterAction =
+          Boolean.parseBoolean(configVars.get(ADAPTIVE_WAIT_AFTER_ACTION));
+    }
+    if (configVars.containsKey(COMPRESS_TEST_RESULTS)) {
+      this.compressTestResults = Boolean.parseBoolean(configVars.get(COMPRESS_TEST_RESULTS));
+    }
+    if (configVars.containsKey(ACTION_CACHE_MAX_SIZE_MB)) {
+      this.actionCacheMaxSizeMb = Integer.parseInt(configVars.get(ACTION_CACHE_MAX_SIZE_MB));
+    }
   }
 
   public void loadFromConfigFile(String cfgFilePath) throws UicdException {
@@ -223,6 +258,10 @@ public class UicdConfig {
     return adbForwardStartPort;
   }
 
+  public int getMinicapWebServerPort() {
+    return minicapWebServerPort;
+  }
+
   public String getXmlDumperApkVersion() {
     return xmlDumperApkVersion;
   }
@@ -250,4 +289,20 @@ public class UicdConfig {
   public boolean isLocalMode() {
     return localMode;
   }
+
+  public int getMlWorkerPoolSize() {
+    return mlWorkerPoolSize;
+  }
+
+  public boolean isAdaptiveWaitAfterAction() {
+    return adaptiveWaitAfterAction;
+  }
+
+  public boolean isCompressTestResults() {
+    return compressTestResults;
+  }
+
+  public int getActionCacheMaxSizeMb() {
+    return actionCacheMaxSizeMb;
+  }
 }
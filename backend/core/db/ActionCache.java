@@ -0,0 +1,169 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.db;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.uicd.backend.core.uicdactions.BaseAction;
+import com.google.uicd.backend.core.uicdactions.CompoundAction;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded cache of the loaded actions, keyed by action id.
+ *
+ * <p>Compound actions link their children by reference, so a compound action is only cached as
+ * long as the instances it links are the cached ones: a compound action is relinked to the cached
+ * children when it is cached, and when a child is evicted, invalidated or cached as another
+ * instance, the compound actions linking it are dropped too and relinked on their next load. A
+ * reverse index from child to parents keeps this to the affected entries.
+ *
+ * <p>Reads never block, the weight of an action is roughly its size in KB.
+ */
+public class ActionCache {
+  private static final int ACTION_BASE_WEIGHT_KB = 1;
+  private static final int CHILDREN_PER_KB = 16;
+
+  private final Cache<String, BaseAction> cache;
+  // Child action id to the ids of the cached compound actions linking it. Ids of compound actions
+  // that no longer link the child may stay until the child is removed, they only cost an extra
+  // invalidation.
+  private final ConcurrentHashMap<String, Set<String>> parentIds = new ConcurrentHashMap<>();
+
+  public ActionCache(long maxWeightKb) {
+    cache =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxWeightKb)
+            .weigher((String uuid, BaseAction action) -> weigh(action))
+            .removalListener(this::onRemoval)
+            .build();
+  }
+
+  @Nullable
+  public BaseAction get(String uuid) {
+    return cache.getIfPresent(uuid);
+  }
+
+  public boolean contains(String uuid) {
+    return cache.getIfPresent(uuid) != null;
+  }
+
+  /** Caches the action, replacing the cached instance with the same id if any. */
+  public void put(BaseAction action) {
+    String uuid = action.getActionId().toString();
+    linkCachedChildren(action);
+    indexChildren(action);
+    BaseAction previous = cache.asMap().put(uuid, action);
+    if (previous != action) {
+      // Cached compound actions may link another instance, also when the action was not cached.
+      invalidateParents(uuid);
+    }
+  }
+
+  /**
+   * Caches the action unless an action with the same id is cached already.
+   *
+   * @return the cached instance, either the given action or the one cached before.
+   */
+  public BaseAction putIfAbsent(BaseAction action) {
+    linkCachedChildren(action);
+    indexChildren(action);
+    BaseAction previous = cache.asMap().putIfAbsent(action.getActionId().toString(), action);
+    return previous != null ? previous : action;
+  }
+
+  /** Drops the action, and the compound actions linking it. */
+  public void invalidate(String uuid) {
+    cache.invalidate(uuid);
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+    parentIds.clear();
+  }
+
+  private void onRemoval(RemovalNotification<String, BaseAction> notification) {
+    if (notification.getCause() == RemovalCause.REPLACED) {
+      // Handled by put, which knows whether the instance changed.
+      return;
+    }
+    if (notification.getValue() != null) {
+      unindexChildren(notification.getValue());
+    }
+    invalidateParents(notification.getKey());
+  }
+
+  private void invalidateParents(String uuid) {
+    Set<String> parents = parentIds.remove(uuid);
+    if (parents != null) {
+      // Removing a parent notifies the listener, which drops the grandparents in turn.
+      parents.forEach(cache::invalidate);
+    }
+  }
+
+  /** Replaces the children of a compound action by the cached instances with the same ids. */
+  private void linkCachedChildren(BaseAction action) {
+    if (action instanceof CompoundAction) {
+      List<BaseAction> children = ((CompoundAction) action).childrenActions;
+      for (int i = 0; i < children.size(); i++) {
+        BaseAction child = children.get(i);
+        if (child == null) {
+          // Child neither cached nor stored, e.g. deleted.
+          continue;
+        }
+        BaseAction cachedChild = cache.getIfPresent(child.getActionId().toString());
+        if (cachedChild != null && cachedChild != child) {
+          children.set(i, cachedChild);
+        }
+      }
+    }
+  }
+
+  private void indexChildren(BaseAction action) {
+    if (action instanceof CompoundAction) {
+      String uuid = action.getActionId().toString();
+      for (String childId : ((CompoundAction) action).childrenIdList) {
+        parentIds.computeIfAbsent(childId, k -> ConcurrentHashMap.newKeySet()).add(uuid);
+      }
+    }
+  }
+
+  private void unindexChildren(BaseAction action) {
+    if (action instanceof CompoundAction) {
+      String uuid = action.getActionId().toString();
+      for (String childId : ((CompoundAction) action).childrenIdList) {
+        parentIds.computeIfPresent(
+            childId,
+            (k, parents) -> {
+              parents.remove(uuid);
+              return parents.isEmpty() ? null : parents;
+            });
+      }
+    }
+  }
+
+  private static int weigh(BaseAction action) {
+    // Reference images are cached by ImageStorageManager, not held by the actions.
+    int weightKb = ACTION_BASE_WEIGHT_KB;
+    if (action instanceof CompoundAction) {
+      weightKb += ((CompoundAction) action).childrenIdList.size() / CHILDREN_PER_KB;
+    }
+    return weightKb;
+  }
+}
@@ -14,8 +14,11 @@
 
 package com.google.uicd.backend.core.db;
 
+import static com.google.common.base.Strings.isNullOrEmpty;
+
 import com.google.api.client.util.Base64;
 import com.google.common.collect.ImmutableList;
+import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.constants.ActionType;
 import com.google.uicd.backend.core.exceptions.UicdActionException;
 import com.google.uicd.backend.core.uicdactions.BaseAction;
@@ -23,9 +26,14 @@ import com.google.uicd.backend.core.uicdactions.CompoundAction;
 import com.google.uicd.backend.core.uicdactions.ImageDiffValidationAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -38,51 +46,104 @@ import java.util.stream.Collectors;
 public abstract class ActionStorageManager {
 
   /** Internal cache to reduce the storage layer(db/filesystem) access. */
-  protected final Map<String, BaseAction> cachedMap = new HashMap<>();
+  protected final ActionCache actionCache =
+      new ActionCache(UicdConfig.getInstance().getActionCacheMaxSizeMb() * 1024L);
 
   protected Logger logger = LogManager.getLogManager().getLogger("uicd");
 
+  // Only serializes the loads, cached actions are returned without locking.
+  private final Object loadLock = new Object();
+
   /* clear the internal cache */
   public void clearCache() {
-    cachedMap.clear();
+    actionCache.invalidateAll();
   }
 
   public abstract List<BaseAction> getBaseActionsFromStorage(List<String> actionIdList)
       throws UicdActionException;
+
   /**
-   * Gets and deserialize action by actionID, this method need to be synchronized, otherwise cache
-   * could be in a incomplete state, and other thread might get the incorrect result.
+   * Gets the action and as many of its descendants as the storage can fetch at once. Children
+   * missing from the result are fetched layer by layer afterwards.
+   */
+  protected List<BaseAction> getActionTreeFromStorage(String actionId)
+      throws UicdActionException {
+    return getBaseActionsFromStorage(Arrays.asList(actionId));
+  }
+  /**
+   * Gets and deserialize action by actionID. Loads are serialized, otherwise the cache could link
+   * a compound action to a child instance loaded by another thread.
    *
    * @param uuidStr action id in string format
    */
-  public synchronized BaseAction getActionByUUID(String uuidStr) throws UicdActionException {
-    if (cachedMap.containsKey(uuidStr)) {
-      return cachedMap.get(uuidStr);
+  public BaseAction getActionByUUID(String uuidStr) throws UicdActionException {
+    BaseAction cachedAction = actionCache.get(uuidStr);
+    if (cachedAction != null) {
+      return cachedAction;
+    }
+    synchronized (loadLock) {
+      cachedAction = actionCache.get(uuidStr);
+      if (cachedAction != null) {
+        return cachedAction;
+      }
+      return loadActionTree(uuidStr);
     }
-    // BFS to fetch children compound actions, while doing the bfs, will ignore the real children
-    // action first, will populate the field once we have everything ready in the memory.
-    List<String> parentLayerActionIds = Arrays.asList(uuidStr);
-    while (!parentLayerActionIds.isEmpty()) {
-      List<BaseAction> currentActionList = getBaseActionsFromStorage(parentLayerActionIds);
-      List<String> nextLayerActionIds = new ArrayList<>();
+  }
+
+  private BaseAction loadActionTree(String uuidStr) throws UicdActionException {
+    // Actions loaded by this call, in loading order. Cached ones are linked as they are.
+    Map<String, BaseAction> loadedActions = new LinkedHashMap<>();
+    // Fetch the tree, then BFS to fetch the children compound actions the storage did not return,
+    // while doing the bfs, will ignore the real children action first, will populate the field
+    // once we have everything ready in the memory.
+    List<BaseAction> currentActionList = getActionTreeFromStorage(uuidStr);
+    while (!currentActionList.isEmpty()) {
+      List<CompoundAction> loadedCompoundActions = new ArrayList<>();
       for (BaseAction curAction : currentActionList) {
-        if (curAction.getActionType() == ActionType.COMPOUND_ACTION) {
-          CompoundAction compoundAction = (CompoundAction) curAction;
-          for (BaseAction childAction : compoundAction.childrenActions) {
-            cachedMap.putIfAbsent(childAction.getActionId().toString(), childAction);
-          }
-          nextLayerActionIds.addAll(
-              compoundAction.childrenIdList.stream()
-                  .filter(actionId -> !cachedMap.containsKey(actionId))
-                  .collect(Collectors.toList()));
-        }
-        loadRefImgIfImgDiffValAction(curAction);
-        cachedMap.putIfAbsent(curAction.getActionId().toString(), curAction);
+        collectLoadedActions(curAction, loadedActions, loadedCompoundActions);
       }
-      parentLayerActionIds = nextLayerActionIds;
+      List<String> nextLayerActionIds =
+          loadedCompoundActions.stream()
+              .flatMap(compoundAction -> compoundAction.childrenIdList.stream())
+              .filter(actionId -> !isKnownAction(actionId, loadedActions))
+              .distinct()
+              .collect(Collectors.toList());
+      currentActionList =
+          nextLayerActionIds.isEmpty()
+              ? new ArrayList<>()
+              : getBaseActionsFromStorage(nextLayerActionIds);
+    }
+    expandActionsReference(loadedActions);
+    // Reverse loading order puts children first, readers of a child not cached yet wait for the
+    // load to finish.
+    List<BaseAction> installOrder = new ArrayList<>(loadedActions.values());
+    Collections.reverse(installOrder);
+    installOrder.forEach(actionCache::put);
+    return loadedActions.containsKey(uuidStr)
+        ? loadedActions.get(uuidStr)
+        : actionCache.get(uuidStr);
+  }
+
+  /** Adds the action and the children stored along with it, unless they are cached already. */
+  private void collectLoadedActions(
+      BaseAction action,
+      Map<String, BaseAction> loadedActions,
+      List<CompoundAction> loadedCompoundActions) {
+    if (isKnownAction(action.getActionId().toString(), loadedActions)) {
+      return;
     }
-    expendAllActionsReference();
-    return cachedMap.get(uuidStr);
+    loadedActions.put(action.getActionId().toString(), action);
+    if (action instanceof CompoundAction) {
+      CompoundAction compoundAction = (CompoundAction) action;
+      loadedCompoundActions.add(compoundAction);
+      for (BaseAction childAction : compoundAction.childrenActions) {
+        collectLoadedActions(childAction, loadedActions, loadedCompoundActions);
+      }
+    }
+  }
+
+  private boolean isKnownAction(String actionId, Map<String, BaseAction> loadedActions) {
+    return loadedActions.containsKey(actionId) || actionCache.contains(actionId);
   }
 
   /**
@@ -107,8 +168,18 @@ public abstract class ActionStorageManager {
    */
   public BaseAction updateActionMetadata(String jsonStr) {
     BaseAction baseActionFromFrontend = BaseAction.fromJson(jsonStr);
-    BaseAction action = cachedMap.get(baseActionFromFrontend.getActionId().toString());
-    action.updateAction(baseActionFromFrontend);
+    BaseAction action;
+    try {
+      action = getActionByUUID(baseActionFromFrontend.getActionId().toString());
+    } catch (UicdActionException e) {
+      logger.warning("Failed to load action: " + e.getMessage());
+      action = null;
+    }
+    if (action == null) {
+      action = baseActionFromFrontend;
+    } else {
+      action.updateAction(baseActionFromFrontend);
+    }
     saveAction(action);
     return action;
   }
@@ -116,7 +187,7 @@ public abstract class ActionStorageManager {
   /** Serializes and saves action into (db/filesystem) */
   public boolean saveAction(BaseAction action) {
     try {
-      cachedMap.putIfAbsent(action.getActionId().toString(), action);
+      actionCache.putIfAbsent(action);
       return saveActions(ImmutableList.of(action));
     } catch (UicdActionException e) {
       logger.severe("Failed to add action");
@@ -127,34 +198,28 @@ public abstract class ActionStorageManager {
   /** Serializes and saves action list into (db/filesystem) */
   public abstract boolean saveActions(List<BaseAction> actions) throws UicdActionException;
 
-  protected void expendAllActionsReference() {
-    // Updates cacheMap, for each compound action in the cachedMap, once we have all the action in
-    // cachedMap we need construct the real object reference.
-    for (BaseAction action : cachedMap.values()) {
+  /**
+   * Constructs the real object reference of the loaded compound actions, preferring the cached
+   * instances over the copies stored along with the compound action.
+   */
+  private void expandActionsReference(Map<String, BaseAction> loadedActions) {
+    for (BaseAction action : loadedActions.values()) {
       if (action.getActionType() == ActionType.COMPOUND_ACTION) {
         CompoundAction compoundAction = (CompoundAction) action;
-        if (compoundAction.childrenIdList.size() != compoundAction.childrenActions.size()) {
-          compoundAction.childrenActions =
-              compoundAction.childrenIdList.stream()
-                  .map(actionId -> cachedMap.get(actionId))
-                  .collect(Collectors.toList());
-        }
+        compoundAction.childrenActions =
+            compoundAction.childrenIdList.stream()
+                .map(
+                    actionId -> {
+                      BaseAction cachedAction = actionCache.get(actionId);
+                      return cachedAction != null ? cachedAction : loadedActions.get(actionId);
+                    })
+                .collect(Collectors.toList());
       }
     }
   }
 
-  protected static BaseAction loadRefImgIfImgDiffValAction(BaseAction baseAction) {
-    if (baseAction instanceof ImageDiffValidationAction) {
-      ImageDiffValidationAction imgValAction = (ImageDiffValidationAction) baseAction;
-      imgValAction.setRefImage(
-          ImageStorageManager.getInstance().getImage(imgValAction.getRefImageUuid()));
-      return imgValAction;
-    }
-    return baseAction;
-  }
-
   private void loadActionToCachedMap(BaseAction action) {
-    if (cachedMap.putIfAbsent(action.getActionId().toString(), action) == null) {
+    if (actionCache.putIfAbsent(action) == action) {
       if (action instanceof CompoundAction) {
         CompoundAction compoundAction = (CompoundAction) action;
         for (BaseAction child : compoundAction.childrenActions) {
@@ -164,26 +229,33 @@ public abstract class ActionStorageManager {
     }
   }
 
+  /** Returns the reference images of the tree in base64, each distinct image encoded once. */
   public Map<String, String> getUuidToBase64RefImgs(String uuidStr) throws UicdActionException {
+    Set<String> refImageUuids = new LinkedHashSet<>();
+    collectRefImageUuids(getActionByUUID(uuidStr), refImageUuids, new HashSet<>());
     Map<String, String> uuidToBase64RefImgs = new HashMap<>();
-    BaseAction action = getActionByUUID(uuidStr);
+    for (String refImageUuid : refImageUuids) {
+      byte[] refImage = ImageStorageManager.getInstance().getImage(refImageUuid);
+      uuidToBase64RefImgs.put(
+          refImageUuid, Base64.encodeBase64String(refImage == null ? new byte[0] : refImage));
+    }
+    return uuidToBase64RefImgs;
+  }
+
+  private static void collectRefImageUuids(
+      BaseAction action, Set<String> refImageUuids, Set<String> visitedActionIds) {
+    if (action == null || !visitedActionIds.add(action.getActionId().toString())) {
+      return;
+    }
     if (action instanceof CompoundAction) {
-      CompoundAction cmpAction = (CompoundAction) action;
-      for (BaseAction childAction : cmpAction.childrenActions) {
-        uuidToBase64RefImgs.putAll(getUuidToBase64RefImgs(childAction.getActionId().toString()));
+      for (BaseAction childAction : ((CompoundAction) action).childrenActions) {
+        collectRefImageUuids(childAction, refImageUuids, visitedActionIds);
       }
     } else if (action instanceof ImageDiffValidationAction) {
-      ImageDiffValidationAction imgValAction = (ImageDiffValidationAction) action;
-      if (imgValAction.getRefImage() != null) {
-        uuidToBase64RefImgs.put(
-            imgValAction.getRefImageUuid(), Base64.encodeBase64String(imgValAction.getRefImage()));
-      } else {
-        uuidToBase64RefImgs.put(
-            imgValAction.getRefImageUuid(),
-            Base64.encodeBase64String(
-                ImageStorageManager.getInstance().getImage(imgValAction.getRefImageUuid())));
+      String refImageUuid = ((ImageDiffValidationAction) action).getRefImageUuid();
+      if (!isNullOrEmpty(refImageUuid)) {
+        refImageUuids.add(refImageUuid);
       }
     }
-    return uuidToBase64RefImgs;
   }
 }
@@ -14,17 +14,34 @@
 
 package com.google.uicd.backend.core.db;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
 import com.google.uicd.backend.core.config.UicdConfig;
+import java.util.regex.Pattern;
 
 /**
  * ImageStorageManager manages the use of different ImageDAO implementations depending on the
  * UicdConfig
+ *
+ * <p>New images are stored under the sha256 of their content, so the same reference image added by
+ * several test cases is stored once. Images are fetched on first use and kept in a bounded cache,
+ * content addressed images never change so they are never stale.
  */
 public class ImageStorageManager {
+  private static final long IMAGE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+  private static final Pattern CONTENT_HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
   private static ImageStorageManager imgStorageMgr;
   private static final UicdConfig uicdCfg = UicdConfig.getInstance();
   private static ImageDAO imgDao;
 
+  private final Cache<String, byte[]> imageCache =
+      CacheBuilder.newBuilder()
+          .maximumWeight(IMAGE_CACHE_MAX_BYTES)
+          .weigher((String id, byte[] image) -> image.length)
+          .build();
+
   private ImageStorageManager() {}
 
   public static ImageStorageManager getInstance() {
@@ -41,19 +58,50 @@ public class ImageStorageManager {
     return imgStorageMgr;
   }
 
+  /** Returns whether the id is the content hash of the image rather than a random uuid. */
+  public static boolean isContentAddressed(String id) {
+    return id != null && CONTENT_HASH_PATTERN.matcher(id).matches();
+  }
+
   public byte[] getImage(String uuid) {
-    return imgDao.getImage(uuid);
+    byte[] image = imageCache.getIfPresent(uuid);
+    if (image == null) {
+      image = imgDao.getImage(uuid);
+      // Missing images are not cached, they may be added later.
+      if (image != null && image.length > 0) {
+        imageCache.put(uuid, image);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Stores the image under its content hash, unless an identical image is stored already.
+   *
+   * @return the content hash, used as the image id.
+   */
+  public String addImage(byte[] image) {
+    String contentHash = Hashing.sha256().hashBytes(image).toString();
+    byte[] storedImage = getImage(contentHash);
+    if (storedImage == null || storedImage.length == 0) {
+      imgDao.addImage(contentHash, image);
+      imageCache.put(contentHash, image);
+    }
+    return contentHash;
   }
 
   public boolean addImage(String uuid, byte[] image) {
+    imageCache.invalidate(uuid);
     return imgDao.addImage(uuid, image);
   }
 
   public boolean updateImage(String uuid, byte[] image) {
+    imageCache.invalidate(uuid);
     return imgDao.updateImage(uuid, image);
   }
 
   public boolean deleteImage(String uuid) {
+    imageCache.invalidate(uuid);
     return imgDao.deleteImage(uuid);
   }
 }
@@ -22,7 +22,7 @@ import static com.google.uicd.backend.core.utils.ADBCommands.ROOT_ACCESS_CMD;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.common.base.Splitter;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.uicd.backend.core.constants.DeviceOrientation;
@@ -32,6 +32,7 @@ import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
 import com.google.uicd.backend.core.utils.ADBCommandLineUtil;
 import com.google.uicd.backend.core.utils.HttpProxyUtils;
 import com.google.uicd.backend.core.utils.ImageUtil;
+import com.google.uicd.backend.core.utils.JsonUtil;
 import com.google.uicd.backend.core.utils.UicdCoreDelegator;
 import com.google.uicd.backend.core.xmlparser.Position;
 import com.google.uicd.backend.core.xmlparser.XmlHelper;
@@ -82,6 +83,8 @@ public class AndroidDeviceDriver {
   private static final String TOUCH_UP_ENDPOINT = "/action/touch/up";
   private static final String ZOOM_ENDPOINT = "/action/zoom";
 
+  private static final ObjectReader DUMP_XML_RESPONSE_READER =
+      JsonUtil.readerFor(new TypeReference<Map<String, Object>>() {});
   private static final Set<String> TV_DEVICE_TYPES = new HashSet<>(Arrays.asList("fugu", "elfin"));
   private static final Set<String> AUTO_DEVICE_TYPES =
       new HashSet<>(Arrays.asList("bat_land", "bat", "hawk"));
@@ -219,7 +222,7 @@ public class AndroidDeviceDriver {
     coordinationMap.put("y", String.valueOf(deviceY));
     HashMap<String, String> clickArgsMap = new HashMap<>();
     try {
-      clickArgsMap.put("params", new ObjectMapper().writeValueAsString(coordinationMap));
+      clickArgsMap.put("params", JsonUtil.writer().writeValueAsString(coordinationMap));
     } catch (JsonProcessingException e) {
       logger.info(e.getMessage());
     }
@@ -241,7 +244,7 @@ public class AndroidDeviceDriver {
     coordinationMap.put("y", String.valueOf(deviceY));
     HashMap<String, String> clickArgsMap = new HashMap<>();
     try {
-      clickArgsMap.put("params", new ObjectMapper().writeValueAsString(coordinationMap));
+      clickArgsMap.put("params", JsonUtil.writer().writeValueAsString(coordinationMap));
     } catch (JsonProcessingException e) {
       logger.info(e.getMessage());
     }
@@ -261,7 +264,7 @@ public class AndroidDeviceDriver {
     coordinationMap.put("y", String.valueOf(deviceY));
     HashMap<String, String> clickArgsMap = new HashMap<>();
     try {
-      clickArgsMap.put("params", new ObjectMapper().writeValueAsString(coordinationMap));
+      clickArgsMap.put("params", JsonUtil.writer().writeValueAsString(coordinationMap));
     } catch (JsonProcessingException e) {
       logger.info(e.getMessage());
     }
@@ -302,7 +305,7 @@ public class AndroidDeviceDriver {
     coordinationMap.put("endY2", String.valueOf(endP2.y));
     HashMap<String, String> clickArgsMap = new HashMap<>();
     try {
-      clickArgsMap.put("params", new ObjectMapper().writeValueAsString(coordinationMap));
+      clickArgsMap.put("params", JsonUtil.writer().writeValueAsString(coordinationMap));
     } catch (JsonProcessingException e) {
       logger.info(e.getMessage());
     }
@@ -346,12 +349,29 @@ public class AndroidDeviceDriver {
     logger.info("fetchCurrentXML is called");
     String queryString = withClassName ? DUMP_XML_WITH_CLASSNAME_QUERYSTRING : "";
     String rawResponse = sendGetRequestWithRetries(DUMP_XML_ENDPOINT + queryString);
-    ObjectMapper mapper = new ObjectMapper();
+    return parseDumpResponse(rawResponse);
+  }
+
+  /**
+   * Dumps the UI once, without the retries and the xml dumper restarts of {@link
+   * #fetchCurrentXML}. Returns an empty list if the dump fails or takes longer than the timeout.
+   */
+  public List<String> fetchCurrentXMLOnce(int timeoutMs) {
+    try {
+      return parseDumpResponse(
+          HttpProxyUtils.getRequestAsString(getXmlDumperUrl() + DUMP_XML_ENDPOINT, timeoutMs));
+    } catch (IOException e) {
+      logger.info("UI dump failed: " + e.getMessage());
+      return new ArrayList<>();
+    }
+  }
+
+  private List<String> parseDumpResponse(String rawResponse) {
     Map<String, Object> map;
 
     List<String> xmls = new ArrayList<>();
     try {
-      map = mapper.readValue(rawResponse, new TypeReference<Map<String, Object>>() {});
+      map = DUMP_XML_RESPONSE_READER.readValue(rawResponse);
       @SuppressWarnings("unchecked") // safe covariant cast
       Map<String, String> xmlMap = (Map<String, String>) map.get("value");
       xmls = combineXmls(xmlMap);
@@ -610,7 +630,7 @@ public class AndroidDeviceDriver {
   private <V> String sendPostRequestWithRetries(String urlEndPoint, HashMap<String, V> contentMap) {
     try {
       return sendPostRequestWithRetries(
-          urlEndPoint, new ObjectMapper().writeValueAsString(contentMap));
+          urlEndPoint, JsonUtil.writer().writeValueAsString(contentMap));
     } catch (JsonProcessingException e) {
       logger.severe(e.getMessage());
     }
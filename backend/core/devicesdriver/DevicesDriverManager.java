@@ -18,8 +18,10 @@ import com.google.common.collect.Iterables;
 import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.exceptions.UicdDeviceException;
 import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
+import com.google.uicd.backend.core.uicdactions.UicdExecutors;
 import com.google.uicd.backend.core.utils.ADBCommandLineUtil;
 import com.google.uicd.backend.core.utils.JsonUtil;
+import com.google.uicd.backend.core.utils.LogcatStreamManager;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.util.ArrayList;
@@ -28,6 +30,9 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -108,8 +113,35 @@ public class DevicesDriverManager {
   public void startMultiXmlDumperServer(List<String> deviceIds, boolean isUpdateApk)
       throws UicdExternalCommandException {
     logger.info("Start startMultiXmlDumperServer...");
-    for (String deviceId : deviceIds) {
-      startXmlDumperServer(deviceId, isUpdateApk);
+    // Installing and starting the dumper is mostly waiting on adb, do all the devices at once.
+    ExecutorService executor =
+        UicdExecutors.newExecutor("xml-dumper-init", Math.max(1, deviceIds.size()));
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (String deviceId : deviceIds) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  startXmlDumperServer(deviceId, isUpdateApk);
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof UicdExternalCommandException) {
+            throw (UicdExternalCommandException) e.getCause();
+          }
+          throw new UicdExternalCommandException(
+              "Failed to start xml dumper: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new UicdExternalCommandException("Interrupted while starting xml dumper.");
+        }
+      }
+    } finally {
+      executor.shutdown();
     }
     logger.info("Finish startMultiXmlDumperServer...");
   }
@@ -146,6 +178,10 @@ public class DevicesDriverManager {
       logger.warning("Devices list is empty returning.");
       return;
     }
+    // The drivers are replaced, logcat is streamed again on first use.
+    for (String oldDeviceId : androidDriverLinkedMap.keySet()) {
+      LogcatStreamManager.getInstance().stopStreams(oldDeviceId);
+    }
     // Reset Xmldumper Mapping
     initXmlDumperDevices.clear();
     androidDriverLinkedMap.clear();
@@ -189,7 +225,7 @@ public class DevicesDriverManager {
       }
       device.setXmlDumperHostPort(freePort);
       device.setMinicapHostPort(getNewPort());
-      device.setMinicapWebServerPort(getNewPort());
+      device.setMinicapWebServerPort(UicdConfig.getInstance().getMinicapWebServerPort());
       device.setSnippetClientHostPort(getNewPort());
       logger.info(device.toString());
       AndroidDeviceDriver androidDeviceDriver = new AndroidDeviceDriver(device);
@@ -236,6 +272,7 @@ public class DevicesDriverManager {
   public void reset() {
     for (AndroidDeviceDriver androidDeviceDriver : instance.androidDriverLinkedMap.values()) {
       killXmlDumperServer(androidDeviceDriver);
+      LogcatStreamManager.getInstance().stopStreams(androidDeviceDriver.getDeviceId());
     }
     instance = new DevicesDriverManager();
   }
@@ -0,0 +1,127 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.globalvariables;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import java.util.function.Function;
+
+/**
+ * A string split once into literal text and references to global variables, e.g. "$uicd_name".
+ *
+ * <p>A reference starts with one of {@link UicdGlobalVariableMap#PARAM_KEYWORD_LIST} and runs over
+ * letters, digits, '_', '-' and '.'. When expanding, the longest leading part of the reference
+ * that names a variable is replaced, so "$uicd_a.txt" still expands "$uicd_a". References to
+ * unknown variables are kept as they are.
+ *
+ * <p>Parsed templates are cached by their source string, the same command lines and inputs are
+ * expanded on every play.
+ */
+public final class GlobalVariableTemplate {
+  private static final int TEMPLATE_CACHE_SIZE = 1024;
+
+  private static final LoadingCache<String, GlobalVariableTemplate> templateCache =
+      CacheBuilder.newBuilder()
+          .maximumSize(TEMPLATE_CACHE_SIZE)
+          .build(CacheLoader.from(GlobalVariableTemplate::parse));
+
+  // Even indexes are literal text, odd indexes are references, so a template is never empty.
+  private final ImmutableList<String> parts;
+
+  private GlobalVariableTemplate(ImmutableList<String> parts) {
+    this.parts = parts;
+  }
+
+  /** Returns the parsed template of the source, parsing it on the first call only. */
+  public static GlobalVariableTemplate of(String source) {
+    return templateCache.getUnchecked(source);
+  }
+
+  public boolean hasReferences() {
+    return parts.size() > 1;
+  }
+
+  /**
+   * Expands the template in a single pass.
+   *
+   * @param resolver returns the value of a variable name, or null if there is no such variable.
+   */
+  public String expand(Function<String, String> resolver) {
+    if (!hasReferences()) {
+      return parts.get(0);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < parts.size(); i++) {
+      String part = parts.get(i);
+      if (i % 2 == 0) {
+        sb.append(part);
+      } else {
+        appendReference(sb, part, resolver);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void appendReference(
+      StringBuilder sb, String reference, Function<String, String> resolver) {
+    int minLength = keywordLength(reference, 0) + 1;
+    for (int end = reference.length(); end >= minLength; end--) {
+      String value = resolver.apply(reference.substring(0, end));
+      if (value != null) {
+        sb.append(value).append(reference, end, reference.length());
+        return;
+      }
+    }
+    sb.append(reference);
+  }
+
+  private static GlobalVariableTemplate parse(String source) {
+    ImmutableList.Builder<String> parts = ImmutableList.builder();
+    int literalStart = 0;
+    int i = source.indexOf('$');
+    while (i >= 0) {
+      int keywordLength = keywordLength(source, i);
+      if (keywordLength == 0) {
+        i = source.indexOf('$', i + 1);
+        continue;
+      }
+      int end = i + keywordLength;
+      while (end < source.length() && isReferenceChar(source.charAt(end))) {
+        end++;
+      }
+      parts.add(source.substring(literalStart, i)).add(source.substring(i, end));
+      literalStart = end;
+      i = source.indexOf('$', end);
+    }
+    parts.add(source.substring(literalStart));
+    return new GlobalVariableTemplate(parts.build());
+  }
+
+  /** Returns the length of the keyword starting at the index, 0 if there is none. */
+  private static int keywordLength(String source, int index) {
+    for (String keyword : UicdGlobalVariableMap.PARAM_KEYWORD_LIST) {
+      if (source.startsWith(keyword, index)) {
+        return keyword.length();
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isReferenceChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+  }
+}
@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -74,6 +75,11 @@ public class UicdGlobalVariableMap {
     PARAM_KEYWORD_LIST.stream().forEach(s -> initReservedVariables(s));
   }
 
+  /** Copies the variables of the other map, later changes of either map are not shared. */
+  public UicdGlobalVariableMap(UicdGlobalVariableMap other) {
+    varMap.putAll(other.varMap);
+  }
+
   private final HashMap<String, UicdGlobalVariableValue> varMap = new HashMap<>();
 
   public void initReservedVariables(String prefix) {
@@ -99,6 +105,45 @@ public class UicdGlobalVariableMap {
     varMap.put(key, UicdGlobalVariableValue.create(value, isExportFiled));
   }
 
+  /** Puts the variables of {@code changed} whose value is not the one in {@code base}. */
+  public void mergeChanges(UicdGlobalVariableMap changed, UicdGlobalVariableMap base) {
+    changed.varMap.forEach(
+        (key, value) -> {
+          if (!value.equals(base.varMap.get(key))) {
+            varMap.put(key, value);
+          }
+        });
+  }
+
+  /**
+   * Replaces the global variables and the device id keyword in the target.
+   *
+   * <p>Variables named with a keyword of {@link #PARAM_KEYWORD_LIST} are resolved in a single pass
+   * by {@link GlobalVariableTemplate}, the few other variables (e.g. {@link #OCR_ENABLE_KEYWORD})
+   * are still replaced wherever they appear.
+   */
+  public String expand(String target, String deviceId) {
+    GlobalVariableTemplate template = GlobalVariableTemplate.of(target);
+    if (template.hasReferences()) {
+      target =
+          template.expand(
+              name -> {
+                if (isDeviceIdKeyword(name)) {
+                  return deviceId;
+                }
+                UicdGlobalVariableValue value = varMap.get(name);
+                return value == null ? null : value.value();
+              });
+    }
+    for (Map.Entry<String, UicdGlobalVariableValue> entry : varMap.entrySet()) {
+      String key = entry.getKey();
+      if (!startsWithKeyword(key) && target.contains(key)) {
+        target = target.replace(key, entry.getValue().value());
+      }
+    }
+    return target;
+  }
+
   public String getRawValue(String key) {
     return varMap.get(key).value();
   }
@@ -142,6 +187,15 @@ public class UicdGlobalVariableMap {
     return prefix + DEVICEID_PARAM_KEYWORD;
   }
 
+  private static boolean isDeviceIdKeyword(String name) {
+    return PARAM_KEYWORD_LIST.stream()
+        .anyMatch(s -> name.equals(getUicdDeviceidParamKeyword(s)));
+  }
+
+  private static boolean startsWithKeyword(String key) {
+    return PARAM_KEYWORD_LIST.stream().anyMatch(s -> key.startsWith(s));
+  }
+
   private void fromStringFormat(String globalVarStr) {
     Iterable<String> valueArr = Splitter.onPattern(VARIABLE_SPLITTER).split(globalVarStr);
     for (String str : valueArr) {
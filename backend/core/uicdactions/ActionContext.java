@@ -20,8 +20,11 @@ import com.google.uicd.backend.core.globalvariables.UicdGlobalVariableMap;
 import java.nio.file.Paths;
 import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ActionContext. Context class for action player.
@@ -30,14 +33,29 @@ public class ActionContext {
 
   public ActionContext() {
     this.executionId = UUID.randomUUID();
+    this.devicesStatus = new ConcurrentHashMap<>();
+    this.actionSequenceIndex = new AtomicInteger();
+    this.cancelRequested = new AtomicBoolean(false);
   }
+
+  private ActionContext(ActionContext parent) {
+    this.executionId = parent.executionId;
+    this.devicesStatus = parent.devicesStatus;
+    this.actionSequenceIndex = parent.actionSequenceIndex;
+    this.cancelRequested = parent.cancelRequested;
+    this.playSpeedFactor = parent.playSpeedFactor;
+    this.currentPlayActionIndex = parent.currentPlayActionIndex;
+    this.globalVariableMap = new UicdGlobalVariableMap(parent.globalVariableMap);
+  }
+
   private final UUID executionId;
-  private final HashMap<String, PlayStatus> devicesStatus = new HashMap<>();
+  // Keyed by device id, shared with the child contexts, each of them only writes its own device.
+  private final Map<String, PlayStatus> devicesStatus;
   private UUID currentPlayingActionId;
   private int currentDeviceIndex;
   private PlayMode playMode = PlayMode.SINGLE;
-  private int actionSequenceIndex = 0;
-  private boolean cancelRequested = false;
+  private final AtomicInteger actionSequenceIndex;
+  private final AtomicBoolean cancelRequested;
   private double playSpeedFactor = 1.0;
   private static final String PNG_EXTENSION = ".png";
 
@@ -48,13 +66,46 @@ public class ActionContext {
   private final Deque<Integer> currentPlayingPath = new ArrayDeque<>();
 
   private UicdGlobalVariableMap globalVariableMap = new UicdGlobalVariableMap();
+  // Global variables of the parent when this branch context was created, null otherwise.
+  private UicdGlobalVariableMap forkedGlobalVariableMap;
+
+  /**
+   * Creates the context of one device played in parallel with the others. The child has its own
+   * playing position and a copy of the global variables, so the devices do not change each
+   * other's variables, while the execution id, the sequence index, the device status and the
+   * cancel request are shared with this context.
+   */
+  public ActionContext createChildContext(int deviceIndex) {
+    ActionContext child = new ActionContext(this);
+    child.setCurrentDeviceIndex(deviceIndex);
+    child.setPlayMode(PlayMode.SINGLE);
+    return child;
+  }
+
+  /**
+   * Creates the context of a compound action branch played in parallel with its siblings. The
+   * branch continues from the current playing path, and its changes of the global variables are
+   * copied back by {@link #mergeBranchContext}.
+   */
+  public ActionContext createBranchContext(int deviceIndex, int playActionIndex) {
+    ActionContext branch = createChildContext(deviceIndex);
+    branch.currentPlayingPath.addAll(currentPlayingPath);
+    branch.setCurrentPlayActionIndex(playActionIndex);
+    branch.forkedGlobalVariableMap = new UicdGlobalVariableMap(globalVariableMap);
+    return branch;
+  }
+
+  /** Copies the global variables changed by the branch, once the branch is done. */
+  public void mergeBranchContext(ActionContext branch) {
+    globalVariableMap.mergeChanges(branch.globalVariableMap, branch.forkedGlobalVariableMap);
+  }
 
   protected int getNextActionSequenceIndex() {
-    return actionSequenceIndex++;
+    return actionSequenceIndex.getAndIncrement();
   }
 
   public int getCurrentActionSequenceIndex() {
-    return actionSequenceIndex;
+    return actionSequenceIndex.get();
   }
 
   public UUID getExecutionId() {
@@ -78,15 +129,15 @@ public class ActionContext {
   }
 
   public void resetPlaybackState() {
-    cancelRequested = false;
+    cancelRequested.set(false);
   }
 
   public void stopPlayback() {
-    cancelRequested = true;
+    cancelRequested.set(true);
   }
 
   public boolean playbackStopRequested() {
-    return cancelRequested;
+    return cancelRequested.get();
   }
 
   public PlayMode getPlayMode() {
@@ -125,21 +176,8 @@ public class ActionContext {
     if (target == null) {
       return "";
     }
-    // target could have multiple $uicd, we need replace all of them
-    for (String keyWord : UicdGlobalVariableMap.PARAM_KEYWORD_LIST) {
-      String devicdIdKeyword = UicdGlobalVariableMap.getUicdDeviceidParamKeyword(keyWord);
-      if (target.contains(devicdIdKeyword)) {
-        target = target.replace(devicdIdKeyword, deviceId);
-      }
-    }
-
-    for (String key : this.globalVariableMap.getRawMap().keySet()) {
-      if (target.contains(key)) {
-        target = target.replace(key, this.globalVariableMap.getRawValue(key));
-      }
-    }
-
-    return target;
+    // target could have multiple $uicd, all of them are replaced in one pass.
+    return this.globalVariableMap.expand(target, deviceId);
   }
 
   public UicdGlobalVariableMap getGlobalVariableMap() {
@@ -19,7 +19,9 @@ import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.NONE;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.uicd.backend.core.utils.JsonUtil;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.LogManager;
@@ -162,16 +164,22 @@ public class ActionExecutionResult {
 
   public String toJson() {
     String jsonDataString = "";
-    ObjectMapper mapper = new ObjectMapper();
-
     try {
-      jsonDataString = mapper.writeValueAsString(this);
+      jsonDataString = JsonUtil.writer().writeValueAsString(this);
     } catch (JsonProcessingException e) {
       logger.warning(e.getMessage());
     }
     return jsonDataString;
   }
 
+  /**
+   * Writes the result tree to the stream while it is serialized, so that the json of a long run is
+   * never held in memory as a whole. The stream is closed when done.
+   */
+  public void writeJson(OutputStream out, boolean gzip) throws IOException {
+    JsonUtil.writeJson(this, out, gzip);
+  }
+
   /** ExecutionResult OutputType */
   public enum OutputType {
     SCREENSHOT,
@@ -0,0 +1,61 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.uicdactions;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.uicd.backend.core.constants.JsonFlag;
+import com.google.uicd.backend.core.uicdactions.jsondbignores.BaseActionDBIgnoreFields;
+import com.google.uicd.backend.core.uicdactions.jsondbignores.ClickActionIgnoreFields;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Readers and writers of actions, one mapper per {@link JsonFlag} view.
+ *
+ * <p>The mappers are configured once and never changed afterwards, so the readers and writers are
+ * safe to share between threads, and the serializers and subtypes resolved by the first call are
+ * cached for all the later ones.
+ */
+final class ActionJsonMappers {
+  private static final ObjectReader ACTION_LIST_READER =
+      new ObjectMapper().readerFor(new TypeReference<List<BaseAction>>() {});
+
+  private static final Map<JsonFlag, ObjectWriter> writers = new EnumMap<>(JsonFlag.class);
+
+  static {
+    ObjectMapper frontendMapper = new ObjectMapper();
+    frontendMapper.addMixIn(ClickAction.class, ClickActionIgnoreFields.class);
+    ObjectMapper dbMapper = new ObjectMapper();
+    dbMapper.addMixIn(BaseAction.class, BaseActionDBIgnoreFields.class);
+    writers.put(JsonFlag.FRONTEND, frontendMapper.writer());
+    writers.put(JsonFlag.BACKEND, dbMapper.writer());
+    writers.put(JsonFlag.EXPORT, dbMapper.writer());
+  }
+
+  private ActionJsonMappers() {}
+
+  /** Reads a json array of actions. */
+  static ObjectReader actionListReader() {
+    return ACTION_LIST_READER;
+  }
+
+  static ObjectWriter writer(JsonFlag whoNeedsJson) {
+    return writers.get(whoNeedsJson);
+  }
+}
@@ -53,6 +53,17 @@ public class ActionPlayer {
     return executionResult;
   }
 
+  private ActionExecutionResult playPlanSingleDevice(
+      ExecutionPlan plan, ActionContext actionContext, int dIndex) {
+    ActionExecutionResult executionResult = new ActionExecutionResult();
+    try {
+      executionResult = plan.execute(androidDeviceDriverList, actionContext, dIndex);
+    } catch (UicdDeviceException e) {
+      logger.warning(e.getMessage());
+    }
+    return executionResult;
+  }
+
   public ActionExecutionResult playAction(BaseAction baseAction) throws UicdDeviceException {
     logger.info("Start play uicd action.");
     ActionExecutionResult actionExecutionResult = new ActionExecutionResult();
@@ -68,14 +79,24 @@ public class ActionPlayer {
       BaseAction baseAction, ActionExecutionResult actionExecutionResult) {
     actionExecutionResult.setOutputType(OutputType.ALLDEVICES);
 
+    // Compile the workflow once, all the devices play the same plan.
+    ExecutionPlan plan =
+        baseAction instanceof CompoundAction
+            ? ExecutionPlan.compile((CompoundAction) baseAction)
+            : null;
     List<CompletableFuture<ActionExecutionResult>> relevanceFutures = new ArrayList<>();
     for (int dIndex = 0; dIndex < androidDeviceDriverList.size(); dIndex++) {
-      actionContext.setCurrentDeviceIndex(dIndex);
-      actionContext.setPlayMode(PlayMode.SINGLE);
+      // Each device plays with its own context, only the status and the cancel request are shared.
+      ActionContext deviceContext = actionContext.createChildContext(dIndex);
       // Variable used in lambda expression should be final or effectively final
       int idx = dIndex;
       relevanceFutures.add(
-          CompletableFuture.supplyAsync(() -> playSingleDevice(baseAction, actionContext, idx))
+          CompletableFuture.supplyAsync(
+                  () ->
+                      plan != null
+                          ? playPlanSingleDevice(plan, deviceContext, idx)
+                          : playSingleDevice(baseAction, deviceContext, idx),
+                  UicdExecutors.getPlaybackExecutor())
               .handle(
                   (result, ex) -> {
                     if (result != null) {
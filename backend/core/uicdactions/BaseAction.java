@@ -23,8 +23,6 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Joiner;
 import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.constants.ActionType;
@@ -33,8 +31,6 @@ import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
 import com.google.uicd.backend.core.exceptions.UicdDeviceException;
 import com.google.uicd.backend.core.exceptions.UicdException;
 import com.google.uicd.backend.core.uicdactions.ActionContext.PlayStatus;
-import com.google.uicd.backend.core.uicdactions.jsondbignores.BaseActionDBIgnoreFields;
-import com.google.uicd.backend.core.uicdactions.jsondbignores.ClickActionIgnoreFields;
 import com.google.uicd.backend.core.utils.ADBCommandLineUtil;
 import com.google.uicd.backend.core.utils.CommandLineUtil;
 import java.time.Duration;
@@ -117,6 +113,9 @@ public abstract class BaseAction {
   // Use this field to indicate whether the action has been modified, if not we don't need save to
   // the DB later.
   private boolean isDirty = true;
+  // Changed on every update of the action through its methods, storage skips serializing the
+  // actions that did not change since their last save.
+  @JsonIgnore private volatile long modificationCount = 0;
 
   private static final Duration SLEEP_TIME_UNIT = Duration.ofMillis(500);
 
@@ -134,6 +133,8 @@ public abstract class BaseAction {
   // sleep time is more than MIN_SLEEP_TIME_TO_LOG.
   private static final int SLEEP_LOGGING_ITERATION = 10;
   private static final Duration MIN_SLEEP_TIME_TO_LOG = Duration.ofSeconds(5);
+  // Shorter waits are not worth dumping the UI for.
+  private static final Duration MIN_ADAPTIVE_WAIT_TIME = Duration.ofMillis(500);
 
   public static BaseAction fromJson(String jsonDataString) {
     List<BaseAction> baseActions = actionsFromJson(jsonDataString);
@@ -147,13 +148,12 @@ public abstract class BaseAction {
   }
 
   public static List<BaseAction> actionsFromJson(String jsonDataString) {
-    ObjectMapper mapper = new ObjectMapper();
     try {
       // if incoming JSON string is a single object, convert to array
       if (!jsonDataString.startsWith("[")) {
         jsonDataString = "[" + jsonDataString + "]";
       }
-      return mapper.readValue(jsonDataString, new TypeReference<List<BaseAction>>() {});
+      return ActionJsonMappers.actionListReader().readValue(jsonDataString);
     } catch (Exception e) {
       System.err.println("Error while parsing json: " + e.getMessage());
     }
@@ -222,6 +222,16 @@ public abstract class BaseAction {
     isDirty = dirty;
   }
 
+  /** Returns a number that changes whenever the action is updated through its methods. */
+  public long getModificationCount() {
+    return modificationCount;
+  }
+
+  /** Records a change of the action made outside of its update methods. */
+  public void markModified() {
+    modificationCount++;
+  }
+
   public String getCreatedBy() {
     return createdBy;
   }
@@ -250,7 +260,7 @@ public abstract class BaseAction {
       } catch (Exception e) {
         logger.warning("Error while playing action: " + e.getMessage());
       }
-      waitAfter(actionContext);
+      waitAfter(androidDeviceDriver, actionContext);
     }
 
     logActionEnd(actionContext);
@@ -264,21 +274,8 @@ public abstract class BaseAction {
 
   public String toJson(JsonFlag whoNeedsJson) {
     String jsonDataString = "";
-    ObjectMapper mapper = new ObjectMapper();
-    switch (whoNeedsJson) {
-      case FRONTEND:
-        mapper.addMixIn(ClickAction.class, ClickActionIgnoreFields.class);
-        break;
-      case BACKEND:
-      case EXPORT:
-        mapper.addMixIn(BaseAction.class, BaseActionDBIgnoreFields.class);
-        break;
-      default:
-        // continue below
-    }
-
     try {
-      jsonDataString = mapper.writeValueAsString(this);
+      jsonDataString = ActionJsonMappers.writer(whoNeedsJson).writeValueAsString(this);
     } catch (JsonProcessingException e) {
       System.err.println("Error while converting to json: " + e.getMessage());
     }
@@ -313,6 +310,7 @@ public abstract class BaseAction {
   }
 
   public void updateCommonFields(BaseAction baseAction) {
+    markModified();
     this.setName(baseAction.getName());
     this.setActionDescription(baseAction.getActionDescription());
     this.setDelayAfterActionMs(baseAction.getDelayAfterActionMs());
@@ -334,6 +332,35 @@ public abstract class BaseAction {
     return !actionContext.canRunAction(androidDeviceDriver.getDeviceId());
   }
 
+  /**
+   * Whether the wait after this action can end as soon as the UI is idle. Only actions interacting
+   * with the UI opt in, for the others an idle UI does not mean they are done.
+   */
+  protected boolean canEndWaitWhenUiIdle() {
+    return false;
+  }
+
+  /**
+   * Waits after the action until the UI of the device is idle, at most the delay of the action.
+   * Falls back to the fixed delay when adaptive wait is turned off in the config.
+   */
+  protected void waitAfter(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext) {
+    long maxWaitTime = (long) (getDelayAfterActionMs() / actionContext.getPlaySpeedFactor());
+    if (androidDeviceDriver == null
+        || !canEndWaitWhenUiIdle()
+        || !UicdConfig.getInstance().isAdaptiveWaitAfterAction()
+        || maxWaitTime < MIN_ADAPTIVE_WAIT_TIME.toMillis()) {
+      waitAfter(actionContext);
+      return;
+    }
+    try {
+      UiIdleDetector.waitForIdle(
+          androidDeviceDriver, maxWaitTime, actionContext::playbackStopRequested);
+    } catch (InterruptedException e) {
+      System.err.println("Error while sleeping: " + e.getMessage());
+    }
+  }
+
   protected void waitAfter(ActionContext actionContext) {
     try {
       long remainingWaitTime =
@@ -91,6 +91,11 @@ public class ClickAction extends BaseAction {
     }
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext)
       throws UicdDeviceHttpConnectionResetException {
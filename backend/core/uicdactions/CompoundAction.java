@@ -26,8 +26,13 @@ import com.google.uicd.backend.core.utils.AdditionalData;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /** CompoundAction is a collection of actions, a DAG with single entry point */
 public class CompoundAction extends BaseAction implements Cloneable {
@@ -40,6 +45,8 @@ public class CompoundAction extends BaseAction implements Cloneable {
   private int repeatTime = 1;
   private boolean failAtTheEnd = false;
   private boolean forceDeviceOnChildren = false;
+  // In MULTIDEVICE mode, play consecutive children forced on different devices at the same time.
+  private boolean playBranchesInParallel = false;
   private final AdditionalData additionalData = new AdditionalData();
 
   @Override
@@ -74,7 +81,11 @@ public class CompoundAction extends BaseAction implements Cloneable {
   public ActionExecutionResult playWithDelay(
       List<AndroidDeviceDriver> deviceDrivers, ActionContext actionContext, int deviceIndex)
       throws UicdDeviceException {
-    boolean playbackCancelled = false;
+    return ExecutionPlan.compile(this).execute(deviceDrivers, actionContext, deviceIndex);
+  }
+
+  /** Starts playing this action, returns the result its children results are added to. */
+  ActionExecutionResult beginPlay(ActionContext actionContext) {
     ActionExecutionResult actionExecutionResult = new ActionExecutionResult();
     actionExecutionResult.setSequenceIndex(actionContext.getNextActionSequenceIndex());
     actionExecutionResult.setRegularOutput(this.getDisplay());
@@ -83,7 +94,6 @@ public class CompoundAction extends BaseAction implements Cloneable {
     logActionStart(actionContext);
 
     playStatus = ActionContext.PlayStatus.READY;
-    boolean stopCurrentLevel = false;
 
     // If user is doing "play from here", we pass in the offset index.
     if (actionContext.getCurrentPlayingPath().isEmpty()
@@ -93,53 +103,14 @@ public class CompoundAction extends BaseAction implements Cloneable {
       actionContext.getCurrentPlayingPath().add(actionContext.getCurrentPlayActionIndex());
       actionContext.setCurrentPlayActionIndex(0);
     }
-    for (int i = 0; i < repeatTime; i++) {
-      for (BaseAction action : childrenActions) {
-        // Update currently playing action ID.
-        actionContext.setCurrentPlayingActionId(action.getActionId());
-
-        if (stopCurrentLevel) {
-          action.playStatus = PlayStatus.SKIPPED;
-        } else {
-          // Reset the playStatus. Action is always in memory, we need to clear the status before
-          action.playStatus = PlayStatus.READY;
-        }
-
-        // For the compound action, we are still using the abstract deviceDriver, since for multi
-        // device case, compound action might need control different device
-        if (actionContext.playbackStopRequested()) {
-          playbackCancelled = true;
-          ActionExecutionResult childResult = new ActionExecutionResult();
-          childResult.setRegularOutput(action.getDisplay());
-          childResult.setSequenceIndex(actionContext.getNextActionSequenceIndex());
-          childResult.setActionId(action.getActionId().toString());
-          childResult.setPlayStatus(ActionContext.PlayStatus.CANCELLED);
-          actionExecutionResult.addChildResult(childResult);
-        } else {
-          ActionExecutionResult childResult;
-          if (actionContext.getPlayMode() == PlayMode.MULTIDEVICE) {
-            if (forceDeviceOnChildren) {
-              // use Single play mode for this subtree to force specific device
-              actionContext.setPlayMode(PlayMode.SINGLE);
-              childResult = action.playWithDelay(deviceDrivers, actionContext, deviceIndex);
-              actionContext.setPlayMode(PlayMode.MULTIDEVICE);
-            } else {
-              // otherwise child action has to figure out the index by itself.
-              childResult = action.playWithDelay(deviceDrivers, actionContext);
-            }
-          } else {
-            childResult = action.playWithDelay(deviceDrivers, actionContext, deviceIndex);
-          }
-          actionExecutionResult.addChildResult(childResult);
-          if (action.playStatus == PlayStatus.EXIT_CURRENT_COMPOUND) {
-            stopCurrentLevel = true;
-          }
-        }
-      }
-      // wait for single repeat
-      waitAfter(actionContext);
-    }
+    return actionExecutionResult;
+  }
 
+  /** Finishes playing this action once all the repeats of the children are done. */
+  ActionExecutionResult endPlay(
+      ActionContext actionContext,
+      ActionExecutionResult actionExecutionResult,
+      boolean playbackCancelled) {
     actionContext.setCurrentPlayActionIndex(actionContext.getCurrentPlayingPath().getLast());
     actionContext.getCurrentPlayingPath().removeLast();
 
@@ -162,7 +133,101 @@ public class CompoundAction extends BaseAction implements Cloneable {
     return actionExecutionResult;
   }
 
+  int getRepeatTime() {
+    return repeatTime;
+  }
+
+  boolean isForceDeviceOnChildren() {
+    return forceDeviceOnChildren;
+  }
+
+  boolean isPlayBranchesInParallel() {
+    return playBranchesInParallel;
+  }
+
+  /**
+   * Whether the branches returned by {@link #getParallelBranches} run at the same time. Not when
+   * this action forces its own device on the children, they all play on that one device.
+   */
+  boolean canPlayBranchesInParallel(ActionContext actionContext) {
+    return playBranchesInParallel
+        && !forceDeviceOnChildren
+        && actionContext.getPlayMode() == PlayMode.MULTIDEVICE;
+  }
+
+  /**
+   * Returns the children from the index on that can be played at the same time: consecutive
+   * compound children forcing their own subtree on distinct devices. Returns less than two children
+   * when the child at the index has to be played alone.
+   */
+  static List<BaseAction> getParallelBranches(List<BaseAction> children, int fromIndex) {
+    List<BaseAction> branches = new ArrayList<>();
+    Set<Integer> usedDevices = new HashSet<>();
+    for (BaseAction child : children.subList(fromIndex, children.size())) {
+      boolean independent =
+          child instanceof CompoundAction
+              && ((CompoundAction) child).forceDeviceOnChildren
+              // Also keeps the same action instance from running twice at once.
+              && usedDevices.add(child.getDeviceIndex());
+      if (!independent) {
+        break;
+      }
+      branches.add(child);
+    }
+    return branches;
+  }
+
+  /**
+   * Plays the branches at the same time, each on its own device and context, and returns their
+   * results in the order of the branches once all of them are done.
+   */
+  List<ActionExecutionResult> playBranches(
+      List<BaseAction> branches,
+      List<AndroidDeviceDriver> deviceDrivers,
+      ActionContext actionContext)
+      throws UicdDeviceException {
+    // A pool per call, nested parallel compound actions can not starve each other.
+    ExecutorService executor = UicdExecutors.newExecutor("compound-branch", branches.size());
+    List<ActionContext> branchContexts = new ArrayList<>();
+    List<Future<ActionExecutionResult>> futures = new ArrayList<>();
+    List<ActionExecutionResult> results = new ArrayList<>();
+    try {
+      for (int b = 0; b < branches.size(); b++) {
+        BaseAction branch = branches.get(b);
+        branch.playStatus = PlayStatus.READY;
+        ActionContext branchContext =
+            actionContext.createBranchContext(
+                branch.getDeviceIndex(), actionContext.getCurrentPlayActionIndex() + b);
+        branchContext.setCurrentPlayingActionId(branch.getActionId());
+        branchContexts.add(branchContext);
+        futures.add(executor.submit(() -> branch.playWithDelay(deviceDrivers, branchContext)));
+      }
+      for (Future<ActionExecutionResult> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof UicdDeviceException) {
+            throw (UicdDeviceException) e.getCause();
+          }
+          throw new UicdDeviceException("Parallel branch failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new UicdDeviceException("Interrupted while playing parallel branches.");
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (ActionContext branchContext : branchContexts) {
+      actionContext.mergeBranchContext(branchContext);
+      // Same as if the branches were played one after another.
+      actionContext.increaseCurrentPlayActionIndex();
+    }
+    return results;
+  }
+
   public void removeAction(String uuidStr) {
+    markModified();
     if (!childrenActions.removeIf(action -> action.getActionId().toString().equals(uuidStr))) {
       logger.warning("Error! Trying to remove action that is not in sequence: " + uuidStr);
     }
@@ -179,6 +244,7 @@ public class CompoundAction extends BaseAction implements Cloneable {
   }
 
   public void removeByIndex(int index) {
+    markModified();
     this.childrenActions.remove(index);
     this.childrenIdList.remove(index);
   }
@@ -193,6 +259,7 @@ public class CompoundAction extends BaseAction implements Cloneable {
       this.repeatTime = otherAction.repeatTime;
       this.failAtTheEnd = otherAction.failAtTheEnd;
       this.forceDeviceOnChildren = otherAction.forceDeviceOnChildren;
+      this.playBranchesInParallel = otherAction.playBranchesInParallel;
 
       // reorder current action list based on list order of input
       HashMap<UUID, BaseAction> map = new HashMap<>();
@@ -254,6 +321,7 @@ public class CompoundAction extends BaseAction implements Cloneable {
     if (action.getName().isEmpty()) {
       action.setName(action.getDisplay());
     }
+    markModified();
     childrenActions.add(action);
     childrenIdList.add(action.getActionId().toString());
   }
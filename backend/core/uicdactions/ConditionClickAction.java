@@ -31,6 +31,11 @@ public class ConditionClickAction extends ScreenContentValidationAction {
     super(validationReqDetails);
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   public int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext)
       throws UicdException {
@@ -147,6 +147,11 @@ public class DragAction extends BaseAction {
     return incrementPath;
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext) {
     List<Position> incrementPath = getDragPath(androidDeviceDriver, actionContext);
@@ -0,0 +1,287 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.uicdactions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
+import com.google.uicd.backend.core.exceptions.UicdDeviceException;
+import com.google.uicd.backend.core.uicdactions.ActionContext.PlayMode;
+import com.google.uicd.backend.core.uicdactions.ActionContext.PlayStatus;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * A {@link CompoundAction} tree compiled into a flat list of steps, played by a single loop.
+ *
+ * <p>The children of every compound action are resolved once at compile time, later changes of
+ * the tree do not affect a compiled plan. The plan keeps no state of its own while playing, so the
+ * same plan can be played on several devices at the same time.
+ *
+ * <p>Each compound action compiles to an ENTER step, the steps of its children, and an EXIT step
+ * jumping back to the first child until all the repeats are done. Consecutive children that can be
+ * played in parallel are preceded by a BRANCHES step, which either plays them all at once and jumps
+ * over them, or falls through to play them one by one.
+ */
+public final class ExecutionPlan {
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+
+  private enum Op {
+    ENTER,
+    LEAF,
+    BRANCHES,
+    EXIT
+  }
+
+  /** One instruction of the plan. */
+  private static final class Step {
+    final Op op;
+    final BaseAction action;
+    // ENTER: index of the EXIT step. EXIT: index of the first child. BRANCHES: index after them.
+    final int jumpIndex;
+    final ImmutableList<BaseAction> branches;
+
+    Step(Op op, BaseAction action, int jumpIndex, ImmutableList<BaseAction> branches) {
+      this.op = op;
+      this.action = action;
+      this.jumpIndex = jumpIndex;
+      this.branches = branches;
+    }
+  }
+
+  /** Playing state of one compound action, the loop keeps a stack of them. */
+  private static final class Frame {
+    final CompoundAction compound;
+    final ActionExecutionResult result;
+    final int deviceIndex;
+    // The action was forced on a device by its parent, MULTIDEVICE mode is restored at the end.
+    final boolean restoreMultiDevice;
+    int repeat = 0;
+    boolean stopCurrentLevel = false;
+    boolean playbackCancelled = false;
+
+    Frame(
+        CompoundAction compound,
+        ActionExecutionResult result,
+        int deviceIndex,
+        boolean restoreMultiDevice) {
+      this.compound = compound;
+      this.result = result;
+      this.deviceIndex = deviceIndex;
+      this.restoreMultiDevice = restoreMultiDevice;
+    }
+  }
+
+  private final ImmutableList<Step> steps;
+
+  private ExecutionPlan(ImmutableList<Step> steps) {
+    this.steps = steps;
+  }
+
+  public static ExecutionPlan compile(CompoundAction root) {
+    List<Step> steps = new ArrayList<>();
+    compileCompound(root, steps);
+    return new ExecutionPlan(ImmutableList.copyOf(steps));
+  }
+
+  private static void compileCompound(CompoundAction compound, List<Step> steps) {
+    int enterIndex = steps.size();
+    steps.add(null);
+    int firstChildIndex = steps.size();
+    List<BaseAction> children = new ArrayList<>();
+    for (BaseAction child : compound.childrenActions) {
+      if (child == null) {
+        logger.warning("Skip unresolved child of: " + compound.getActionId());
+      } else {
+        children.add(child);
+      }
+    }
+    int childIndex = 0;
+    while (childIndex < children.size()) {
+      List<BaseAction> branches =
+          compound.isPlayBranchesInParallel()
+              ? CompoundAction.getParallelBranches(children, childIndex)
+              : ImmutableList.of();
+      if (branches.size() > 1) {
+        int branchesIndex = steps.size();
+        steps.add(null);
+        branches.forEach(branch -> compileChild(branch, steps));
+        steps.set(
+            branchesIndex,
+            new Step(Op.BRANCHES, compound, steps.size(), ImmutableList.copyOf(branches)));
+        childIndex += branches.size();
+      } else {
+        compileChild(children.get(childIndex++), steps);
+      }
+    }
+    int exitIndex = steps.size();
+    steps.add(new Step(Op.EXIT, compound, firstChildIndex, ImmutableList.of()));
+    steps.set(enterIndex, new Step(Op.ENTER, compound, exitIndex, ImmutableList.of()));
+  }
+
+  private static void compileChild(BaseAction child, List<Step> steps) {
+    if (child instanceof CompoundAction) {
+      compileCompound((CompoundAction) child, steps);
+    } else {
+      steps.add(new Step(Op.LEAF, child, -1, ImmutableList.of()));
+    }
+  }
+
+  /** Plays the plan on the device at the index, returns the result of the root action. */
+  public ActionExecutionResult execute(
+      List<AndroidDeviceDriver> deviceDrivers, ActionContext actionContext, int deviceIndex)
+      throws UicdDeviceException {
+    Deque<Frame> frames = new ArrayDeque<>();
+    ActionExecutionResult rootResult = null;
+    int pc = 0;
+    while (pc < steps.size()) {
+      Step step = steps.get(pc);
+      Frame parent = frames.peek();
+      switch (step.op) {
+        case ENTER:
+          {
+            CompoundAction compound = (CompoundAction) step.action;
+            int childDeviceIndex = deviceIndex;
+            boolean forced = false;
+            if (parent != null) {
+              if (!beginChild(parent, compound, actionContext)) {
+                pc = step.jumpIndex + 1;
+                continue;
+              }
+              if (actionContext.getPlayMode() == PlayMode.MULTIDEVICE) {
+                if (parent.compound.isForceDeviceOnChildren()) {
+                  // use Single play mode for this subtree to force specific device
+                  actionContext.setPlayMode(PlayMode.SINGLE);
+                  forced = true;
+                  childDeviceIndex = parent.deviceIndex;
+                } else {
+                  // otherwise child action has to figure out the index by itself.
+                  childDeviceIndex = compound.getDeviceIndex();
+                }
+              } else {
+                childDeviceIndex = parent.deviceIndex;
+              }
+            }
+            frames.push(
+                new Frame(
+                    compound, compound.beginPlay(actionContext), childDeviceIndex, forced));
+            pc = compound.getRepeatTime() > 0 ? pc + 1 : step.jumpIndex;
+            break;
+          }
+        case LEAF:
+          if (beginChild(parent, step.action, actionContext)) {
+            ActionExecutionResult result =
+                playLeaf(parent, step.action, deviceDrivers, actionContext);
+            endChild(parent, step.action, result);
+          }
+          pc++;
+          break;
+        case BRANCHES:
+          if (parent.compound.canPlayBranchesInParallel(actionContext)
+              && !parent.stopCurrentLevel
+              && !actionContext.playbackStopRequested()) {
+            List<ActionExecutionResult> branchResults =
+                parent.compound.playBranches(step.branches, deviceDrivers, actionContext);
+            for (int b = 0; b < step.branches.size(); b++) {
+              endChild(parent, step.branches.get(b), branchResults.get(b));
+            }
+            pc = step.jumpIndex;
+          } else {
+            pc++;
+          }
+          break;
+        case EXIT:
+          {
+            Frame frame = parent;
+            if (frame.compound.getRepeatTime() > 0) {
+              // wait for single repeat
+              frame.compound.waitAfter(actionContext);
+              if (++frame.repeat < frame.compound.getRepeatTime()) {
+                pc = step.jumpIndex;
+                break;
+              }
+            }
+            frames.pop();
+            ActionExecutionResult result =
+                frame.compound.endPlay(actionContext, frame.result, frame.playbackCancelled);
+            if (frame.restoreMultiDevice) {
+              actionContext.setPlayMode(PlayMode.MULTIDEVICE);
+            }
+            if (frames.isEmpty()) {
+              rootResult = result;
+            } else {
+              endChild(frames.peek(), frame.compound, result);
+            }
+            pc++;
+            break;
+          }
+      }
+    }
+    return rootResult;
+  }
+
+  private static ActionExecutionResult playLeaf(
+      Frame parent,
+      BaseAction action,
+      List<AndroidDeviceDriver> deviceDrivers,
+      ActionContext actionContext)
+      throws UicdDeviceException {
+    if (actionContext.getPlayMode() != PlayMode.MULTIDEVICE) {
+      return action.playWithDelay(deviceDrivers, actionContext, parent.deviceIndex);
+    }
+    if (!parent.compound.isForceDeviceOnChildren()) {
+      // otherwise child action has to figure out the index by itself.
+      return action.playWithDelay(deviceDrivers, actionContext);
+    }
+    actionContext.setPlayMode(PlayMode.SINGLE);
+    try {
+      return action.playWithDelay(deviceDrivers, actionContext, parent.deviceIndex);
+    } finally {
+      actionContext.setPlayMode(PlayMode.MULTIDEVICE);
+    }
+  }
+
+  /**
+   * Prepares the child for playing, returns false if the playback is cancelled, in which case the
+   * child gets a CANCELLED result without being played.
+   */
+  private static boolean beginChild(Frame parent, BaseAction action, ActionContext actionContext) {
+    // Update currently playing action ID.
+    actionContext.setCurrentPlayingActionId(action.getActionId());
+    // Reset the playStatus. Action is always in memory, we need to clear the status before
+    action.playStatus = parent.stopCurrentLevel ? PlayStatus.SKIPPED : PlayStatus.READY;
+    if (!actionContext.playbackStopRequested()) {
+      return true;
+    }
+    parent.playbackCancelled = true;
+    ActionExecutionResult childResult = new ActionExecutionResult();
+    childResult.setRegularOutput(action.getDisplay());
+    childResult.setSequenceIndex(actionContext.getNextActionSequenceIndex());
+    childResult.setActionId(action.getActionId().toString());
+    childResult.setPlayStatus(PlayStatus.CANCELLED);
+    parent.result.addChildResult(childResult);
+    return false;
+  }
+
+  private static void endChild(Frame parent, BaseAction action, ActionExecutionResult result) {
+    parent.result.addChildResult(result);
+    if (action.playStatus == PlayStatus.EXIT_CURRENT_COMPOUND) {
+      parent.stopCurrentLevel = true;
+    }
+  }
+}
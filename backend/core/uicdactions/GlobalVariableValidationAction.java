@@ -21,12 +21,15 @@ import static com.google.common.base.Strings.nullToEmpty;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
+import com.google.uicd.backend.core.globalvariables.UicdGlobalVariableMap;
 import com.google.uicd.backend.core.utils.UicdTypeConverter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.apache.commons.jexl3.JexlBuilder;
 import org.apache.commons.jexl3.JexlContext;
 import org.apache.commons.jexl3.JexlEngine;
-import org.apache.commons.jexl3.JexlExpression;
-import org.apache.commons.jexl3.MapContext;
+import org.apache.commons.jexl3.JexlScript;
 
 /**
  * GlobalVariableValidationAction validate the expression provided by user. It provides the
@@ -41,10 +44,18 @@ import org.apache.commons.jexl3.MapContext;
 public class GlobalVariableValidationAction extends ValidationAction {
 
   private static final String TYPE_CONVERTER_OBJ_KEYWORD = "uicdTypeConverter";
+  private static final int JEXL_CACHE_SIZE = 256;
+  // Engines are thread safe, the cache keeps the parsed expressions of all the actions.
+  private static final JexlEngine JEXL = new JexlBuilder().cache(JEXL_CACHE_SIZE).create();
+  private static final UicdTypeConverter TYPE_CONVERTER = new UicdTypeConverter();
+
   protected String expression;
 
   @JsonIgnore String displayStr;
 
+  // Expression of the last play, replaced when the expression text is edited.
+  @JsonIgnore private volatile CompiledExpression compiledExpression;
+
   @Override
   public String getDisplay() {
     return "Global Variable Validation Action " + nullToEmpty(this.expression);
@@ -52,28 +63,15 @@ public class GlobalVariableValidationAction extends ValidationAction {
 
   @Override
   boolean validateRaw(ActionContext actionContext, AndroidDeviceDriver androidDeviceDriver) {
-    // Create or retrieve an engine
-    JexlEngine jexl = new JexlBuilder().create();
-
-    // Create an expression
-    JexlExpression e = jexl.createExpression(expression);
-
-    JexlContext jc = new MapContext();
-
-    // To use advanced expression, need a converter to do the trick, the expression will be like
-    // "uicdTypeConverter.toInt($uicd_var1) + uicdTypeConverter.toInt($uicd_var2)";
-    if (expression.contains(TYPE_CONVERTER_OBJ_KEYWORD)) {
-      jc.set(TYPE_CONVERTER_OBJ_KEYWORD, new UicdTypeConverter());
-    }
-    // Create a context and add data
-    // jc.set("$uicd_var1", new String("adbcd"));
+    JexlScript script = getCompiledScript();
+    UicdGlobalVariableMap globalVariableMap = actionContext.getGlobalVariableMap();
     // Set the displayStr so that we can see the result in the test details.
-    displayStr = expandUicdGlobalVariableToJexl(expression, jc, actionContext);
+    displayStr = getReferencedVariablesDisplay(script, globalVariableMap);
 
     // Now evaluate the expression, getting the result
     boolean ret = false;
     try {
-      Object o = e.evaluate(jc);
+      Object o = script.execute(new GlobalVariableJexlContext(globalVariableMap));
       ret = Boolean.parseBoolean(o.toString());
     } catch (Exception ex) {
       System.out.println(ex.getMessage());
@@ -82,15 +80,23 @@ public class GlobalVariableValidationAction extends ValidationAction {
     return ret;
   }
 
-  private String expandUicdGlobalVariableToJexl(
-      String jexlExp, JexlContext jc, ActionContext actionContext) {
+  /** Returns the compiled expression, compiling it again only when the expression changed. */
+  private JexlScript getCompiledScript() {
+    CompiledExpression compiled = compiledExpression;
+    if (compiled == null || !compiled.source.equals(expression)) {
+      compiled = new CompiledExpression(expression, JEXL.createScript(expression));
+      compiledExpression = compiled;
+    }
+    return compiled.script;
+  }
+
+  private static String getReferencedVariablesDisplay(
+      JexlScript script, UicdGlobalVariableMap globalVariableMap) {
     StringBuilder sb = new StringBuilder();
-    // target could have multiple "$uicd_", we need replace all of them
-    for (String key : actionContext.getGlobalVariableMap().getRawMap().keySet()) {
-      if (jexlExp.contains(key)) {
-        jc.set(key, actionContext.getGlobalVariableMap().getRawValue(key));
-        sb.append(
-            String.format("%s:%s|", key, actionContext.getGlobalVariableMap().getRawValue(key)));
+    for (List<String> variable : script.getVariables()) {
+      String key = variable.get(0);
+      if (globalVariableMap.getRawMap().containsKey(key)) {
+        sb.append(String.format("%s:%s|", key, globalVariableMap.getRawValue(key)));
       }
     }
     return sb.toString();
@@ -105,4 +111,53 @@ public class GlobalVariableValidationAction extends ValidationAction {
       this.expression = otherAction.expression;
     }
   }
+
+  private static class CompiledExpression {
+    final String source;
+    final JexlScript script;
+
+    CompiledExpression(String source, JexlScript script) {
+      this.source = source;
+      this.script = script;
+    }
+  }
+
+  /**
+   * Resolves the variables of the expression from the global variable map, without copying it.
+   *
+   * <p>To use advanced expression, need a converter to do the trick, the expression will be like
+   * "uicdTypeConverter.toInt($uicd_var1) + uicdTypeConverter.toInt($uicd_var2)". Variables
+   * assigned by the expression stay local to one evaluation.
+   */
+  private static class GlobalVariableJexlContext implements JexlContext {
+    private final UicdGlobalVariableMap globalVariableMap;
+    private final Map<String, Object> localVariables = new HashMap<>();
+
+    GlobalVariableJexlContext(UicdGlobalVariableMap globalVariableMap) {
+      this.globalVariableMap = globalVariableMap;
+    }
+
+    @Override
+    public Object get(String name) {
+      if (localVariables.containsKey(name)) {
+        return localVariables.get(name);
+      }
+      if (globalVariableMap.getRawMap().containsKey(name)) {
+        return globalVariableMap.getRawValue(name);
+      }
+      return TYPE_CONVERTER_OBJ_KEYWORD.equals(name) ? TYPE_CONVERTER : null;
+    }
+
+    @Override
+    public void set(String name, Object value) {
+      localVariables.put(name, value);
+    }
+
+    @Override
+    public boolean has(String name) {
+      return localVariables.containsKey(name)
+          || globalVariableMap.getRawMap().containsKey(name)
+          || TYPE_CONVERTER_OBJ_KEYWORD.equals(name);
+    }
+  }
 }
@@ -14,9 +14,12 @@
 
 package com.google.uicd.backend.core.uicdactions;
 
+import static com.google.common.base.Strings.isNullOrEmpty;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import com.google.uicd.backend.core.db.ImageStorageManager;
 import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
 import com.google.uicd.backend.core.exceptions.UicdException;
 import com.google.uicd.backend.core.utils.ImageDiffUtil;
@@ -33,6 +36,7 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import javax.imageio.ImageIO;
 
@@ -56,8 +60,16 @@ public class ImageDiffValidationAction extends ValidationAction {
 
   @VisibleForTesting protected List<Region> regions = new ArrayList<>();
 
+  /**
+   * Returns the reference image, the one set on the action or else the one in the image storage.
+   * Images from the storage are not kept on the action, the storage caches them within its bound.
+   */
   public byte[] getRefImage() {
-    return refImage;
+    if (refImage != null || isNullOrEmpty(refImageUuid)) {
+      return refImage;
+    }
+    byte[] image = ImageStorageManager.getInstance().getImage(refImageUuid);
+    return image != null && image.length > 0 ? image : null;
   }
 
   public void setRefImage(byte[] refImage) {
@@ -78,6 +90,9 @@ public class ImageDiffValidationAction extends ValidationAction {
     ImageDiffValidationAction imgDiffValidAction = (ImageDiffValidationAction) baseAction;
     diffScoreThreshold = imgDiffValidAction.diffScoreThreshold;
     includeRegion = imgDiffValidAction.includeRegion;
+    if (!Objects.equals(refImageUuid, imgDiffValidAction.refImageUuid)) {
+      refImage = null;
+    }
     refImageUuid = imgDiffValidAction.refImageUuid;
     regions = imgDiffValidAction.regions;
   }
@@ -85,13 +100,14 @@ public class ImageDiffValidationAction extends ValidationAction {
   @Override
   boolean validateRaw(ActionContext actionContext, AndroidDeviceDriver androidDeviceDriver) {
     setScreenCapPath(actionContext);
-    try (InputStream in = new ByteArrayInputStream(refImage)) {
+    byte[] refImageBytes = getRefImage();
+    if (refImageBytes == null) {
+      logger.info("The image diff validation did not run as reference image is unavailable");
+      return false;
+    }
+    try (InputStream in = new ByteArrayInputStream(refImageBytes)) {
       ImageUtil.saveScreenshotToLocal(androidDeviceDriver.getDeviceId(), screenCapPath);
       BufferedImage curImg = ImageIO.read(new File(screenCapPath));
-      if (refImage == null) {
-        logger.info("The image diff validation did not run as reference image is unavailable");
-        return false;
-      }
 
       BufferedImage refImg = ImageIO.read(in);
       BufferedImage resizedImg = curImg;
@@ -66,6 +66,11 @@ public class InputAction extends BaseAction {
     this.inputString = inputString;
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext) {
     if (isSingleChar) {
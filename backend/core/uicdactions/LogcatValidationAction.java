@@ -23,8 +23,9 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
 import com.google.uicd.backend.core.exceptions.UicdException;
-import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
 import com.google.uicd.backend.core.exceptions.UicdHostException;
+import com.google.uicd.backend.core.utils.LogcatStream;
+import com.google.uicd.backend.core.utils.LogcatStreamManager;
 import com.google.uicd.backend.core.xmlparser.TextValidator;
 import java.io.File;
 import java.io.IOException;
@@ -34,6 +35,8 @@ import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /** LogcatValidationAction */
 @JsonAutoDetect(
@@ -43,6 +46,9 @@ import java.util.List;
     isGetterVisibility = NONE)
 public class LogcatValidationAction extends ValidationAction {
 
+  // Same as the default timeout of a command line.
+  private static final int DEFAULT_STREAM_WAIT_SEC = 10;
+
   public String commandLine;
 
   public Integer commandlineExecutionTimeoutSec;
@@ -52,6 +58,10 @@ public class LogcatValidationAction extends ValidationAction {
   // when logcatOnly is true, we don't do validation
   private boolean logcatOnly;
   @JsonIgnore private List<String> logcatOutput = new ArrayList<>();
+  // Set when the command is a plain logcat command, which is read from a long running stream
+  // instead of a dump.
+  @JsonIgnore private LogcatStream logcatStream;
+  @JsonIgnore private long actionStartTimeMillis;
 
   @Override
   public String getDisplay() {
@@ -74,12 +84,15 @@ public class LogcatValidationAction extends ValidationAction {
 
   @Override
   public boolean validateRaw(ActionContext actionContext, AndroidDeviceDriver androidDeviceDriver) {
-    List<String> outputs = getLogcatOutput();
     this.setTextValidator(
         new TextValidator(
             actionContext.expandUicdGlobalVariable(
                 textValidator.getPatternValue(), androidDeviceDriver.getDeviceId()),
             textValidator.getContentMatchType()));
+    if (logcatStream != null) {
+      return validateFromStream();
+    }
+    List<String> outputs = getLogcatOutput();
     for (String line : outputs) {
       if (textValidator.isMatch(line)) {
         return true;
@@ -88,6 +101,27 @@ public class LogcatValidationAction extends ValidationAction {
     return false;
   }
 
+  /**
+   * Waits for a matching line until the timeout, counted from the start of the action, and returns
+   * as soon as one arrives. Lines already in the device buffer are checked first, like a dump.
+   */
+  private boolean validateFromStream() {
+    int timeoutSec =
+        commandlineExecutionTimeoutSec == null || commandlineExecutionTimeoutSec == 0
+            ? DEFAULT_STREAM_WAIT_SEC
+            : commandlineExecutionTimeoutSec;
+    long deadlineMillis = actionStartTimeMillis + TimeUnit.SECONDS.toMillis(timeoutSec);
+    try {
+      Optional<String> match = logcatStream.awaitMatch(textValidator::isMatch, deadlineMillis);
+      return match.isPresent();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      logcatOutput = logcatStream.getLinesSince(actionStartTimeMillis);
+    }
+  }
+
   public List<String> getLogcatOutput() {
     return logcatOutput;
   }
@@ -99,8 +133,23 @@ public class LogcatValidationAction extends ValidationAction {
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext)
       throws UicdException {
+    actionStartTimeMillis = System.currentTimeMillis();
     this.logcatOutput.clear();
-    saveLogToLocalFile(actionContext, androidDeviceDriver);
+    String targetCommandLine =
+        actionContext.expandUicdGlobalVariable(this.commandLine, androidDeviceDriver.getDeviceId());
+    // When the stop type inverts the result no match is the expected outcome, which only a full
+    // dump can tell right away: a stream may not have read the device buffer yet.
+    logcatStream =
+        logcatOnly || !isStopWhenFalse()
+            ? null
+            : getLogcatStream(targetCommandLine, androidDeviceDriver);
+    if (logcatStream == null) {
+      adbCommandLineUtil.executeAdbLogcatCommand(
+          targetCommandLine,
+          androidDeviceDriver.getDeviceId(),
+          logcatOutput,
+          commandlineExecutionTimeoutSec);
+    }
     if (!logcatOnly) {
       validationResult = validate(actionContext, androidDeviceDriver);
       if (!validationResult) {
@@ -108,6 +157,7 @@ public class LogcatValidationAction extends ValidationAction {
         this.playStatus = ActionContext.PlayStatus.FAIL;
       }
     }
+    saveLogToLocalFile(actionContext);
     return 0;
   }
 
@@ -143,18 +193,24 @@ public class LogcatValidationAction extends ValidationAction {
     return actionExecutionResult;
   }
 
-  private boolean saveLogToLocalFile(
-      ActionContext actionContext, AndroidDeviceDriver androidDeviceDriver)
-      throws UicdExternalCommandException, UicdHostException {
-    logFilePath = actionContext.getExecutionId() + "/" + getActionId() + "/logcat/output.txt";
+  /** Returns the stream of the command, or null if the command has to be run as a dump. */
+  private LogcatStream getLogcatStream(
+      String targetCommandLine, AndroidDeviceDriver androidDeviceDriver) {
+    Optional<List<String>> logcatArgs = LogcatStream.parseLogcatArgs(targetCommandLine);
+    if (!logcatArgs.isPresent()) {
+      return null;
+    }
+    try {
+      return LogcatStreamManager.getInstance()
+          .getStream(androidDeviceDriver.getDeviceId(), logcatArgs.get());
+    } catch (IOException e) {
+      logger.warning("Failed to start logcat stream, fall back to dump: " + e.getMessage());
+      return null;
+    }
+  }
 
-    String targetCommandLine =
-        actionContext.expandUicdGlobalVariable(this.commandLine, androidDeviceDriver.getDeviceId());
-    adbCommandLineUtil.executeAdbLogcatCommand(
-        targetCommandLine,
-        androidDeviceDriver.getDeviceId(),
-        logcatOutput,
-        commandlineExecutionTimeoutSec);
+  private boolean saveLogToLocalFile(ActionContext actionContext) throws UicdHostException {
+    logFilePath = actionContext.getExecutionId() + "/" + getActionId() + "/logcat/output.txt";
 
     // write output to file ?
     // SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss");
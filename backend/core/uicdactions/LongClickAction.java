@@ -61,6 +61,11 @@ public class LongClickAction extends BaseAction {
     }
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext) {
     if (isRawXY) {
@@ -15,19 +15,15 @@
 package com.google.uicd.backend.core.uicdactions;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.constants.IconImageType;
 import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
 import com.google.uicd.backend.core.exceptions.UicdException;
-import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
 import com.google.uicd.backend.core.utils.ImageUtil;
+import com.google.uicd.backend.core.utils.PythonModelWorkerPool;
 import com.google.uicd.backend.core.utils.UicdCoreDelegator;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 /** Validation used for pre-trained image-based icons. */
 public class MLImageValidationAction extends ScreenContentValidationAction {
@@ -35,12 +31,6 @@ public class MLImageValidationAction extends ScreenContentValidationAction {
   public IconImageType iconImageType;
   @JsonIgnore private String screenCapPath;
 
-  private static final String PYTHON3 = "python3";
-  private static final String COMMAND_LINE_SPACE = " ";
-
-  private static final String SCRIPTS_FOLDER_NAME = "scripts";
-  private static final String PREDICTION_SCRIPT = "test_model.py";
-  private static final String PRIVATE_KEY_JSON = "image_validation_bucket_key.json";
   private static final String WEIGHTS_FILE_EXTENSION = ".hdf5";
 
   // Required for deserialization.
@@ -106,36 +96,16 @@ public class MLImageValidationAction extends ScreenContentValidationAction {
    *     for containing the icon, and second number is the probability for not.
    */
   private List<Double> getPredictionValues(String iconImageTypeString) throws UicdException {
-    List<String> output = new ArrayList<>();
-    try {
-      String commandLine =
-          String.join(
-              COMMAND_LINE_SPACE,
-              PYTHON3,
-              getPredictionScriptFilePath(),
-              getWeightsFileName(iconImageTypeString),
-              screenCapPath,
-              getCloudCredentialsPath());
-      commandLineUtil.execute(commandLine, output, true);
-    } catch (UicdExternalCommandException e) {
-      logger.warning(e.getMessage());
-    }
-    try {
-      return output.stream().map(e -> Double.parseDouble(e)).collect(Collectors.toList());
-    } catch (Error e) {
+    // The model runs in a long lived python worker, so the interpreter and the weights are only
+    // loaded once instead of for every validation.
+    List<Double> predictionValues =
+        PythonModelWorkerPool.getInstance()
+            .predict(getWeightsFileName(iconImageTypeString), screenCapPath);
+    if (predictionValues.size() != 2) {
       throw new UicdException(
           "Prediction output must be of length 2 array with two numbers, both between 0 and 1");
     }
-  }
-
-  private static String getPredictionScriptFilePath() {
-    return Paths.get(
-            UicdConfig.getInstance().getBaseFolder(), SCRIPTS_FOLDER_NAME, PREDICTION_SCRIPT)
-        .toString();
-  }
-
-  private static String getCloudCredentialsPath() {
-    return Paths.get(UicdConfig.getInstance().getBaseFolder(), PRIVATE_KEY_JSON).toString();
+    return predictionValues;
   }
 
   private static String getWeightsFileName(String iconImageTypeString) {
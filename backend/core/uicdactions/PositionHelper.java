@@ -14,6 +14,7 @@
 
 package com.google.uicd.backend.core.uicdactions;
 
+import com.google.uicd.backend.core.constants.ScreenContentSearchType;
 import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
 import com.google.uicd.backend.core.globalvariables.UicdGlobalVariableMap;
 import com.google.uicd.backend.core.utils.ImageUtil;
@@ -53,6 +54,26 @@ public class PositionHelper {
    */
   public Position getPositionFromScreenByORC(
       String targetText, AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext) {
+    return getPositionFromScreenByORC(
+        targetText, androidDeviceDriver, actionContext, /* searchBounds= */ null);
+  }
+
+  /**
+   * Find the position by orc engine based on the target text, only looking inside the search
+   * bounds.
+   *
+   * @param targetText the target text user want to click on the screen
+   * @param androidDeviceDriver android device driver
+   * @param actionContext current action context
+   * @param searchBounds the region to search in, same coordinates as the xml bounds (scaled to
+   *     the host screen). Null means full screen.
+   * @return the center position of the target (real physical x/y)
+   */
+  public Position getPositionFromScreenByORC(
+      String targetText,
+      AndroidDeviceDriver androidDeviceDriver,
+      ActionContext actionContext,
+      Bounds searchBounds) {
     Position pos = new Position();
     boolean ocrEnabled =
         Boolean.parseBoolean(
@@ -65,7 +86,16 @@ public class PositionHelper {
     }
     String screenCapPath = actionContext.getScreenCapFullPath(ORC_SCREEN_CAP_PREFIX);
     ImageUtil.saveScreenshotToLocal(androidDeviceDriver.getDeviceId(), screenCapPath);
-    List<Bounds> bounds = ocrUtil.getBoundsOfText(targetText, screenCapPath);
+    Bounds physicalSearchBounds = null;
+    if (searchBounds != null) {
+      physicalSearchBounds =
+          new Bounds(
+              searchBounds.getX1() * androidDeviceDriver.getWidthRatio(),
+              searchBounds.getY1() * androidDeviceDriver.getHeightRatio(),
+              searchBounds.getX2() * androidDeviceDriver.getWidthRatio(),
+              searchBounds.getY2() * androidDeviceDriver.getHeightRatio());
+    }
+    List<Bounds> bounds = ocrUtil.getBoundsOfText(targetText, screenCapPath, physicalSearchBounds);
     if (!bounds.isEmpty()) {
       pos = bounds.get(0).getCenter();
       pos.isPhysicalPos = true;
@@ -77,7 +107,8 @@ public class PositionHelper {
    * Find the position based on the node context.
    *
    * <p> Use the xml dumper first to find the element, if can not find, fallback to the
-   * ORC(tesseract) engine.
+   * ORC(tesseract) engine. The OCR engine looks around the recorded bounds first, and only falls
+   * back to full screen if the text is not there.
    *
    * @param androidDeviceDriver android device driver
    * @param nodeContext the target context user want to click on the screen
@@ -103,7 +134,17 @@ public class PositionHelper {
       return pos;
     } else {
       String targetText = nodeContext.getLeafNodeContext().getText();
-      pos = getPositionFromScreenByORC(targetText, androidDeviceDriver, actionContext);
+      if (nodeContext.getBounds() != null) {
+        pos =
+            getPositionFromScreenByORC(
+                targetText,
+                androidDeviceDriver,
+                actionContext,
+                nodeContext.getBounds().getBoundsFromSearchType(ScreenContentSearchType.AROUND));
+      }
+      if (!pos.isValidPos()) {
+        pos = getPositionFromScreenByORC(targetText, androidDeviceDriver, actionContext);
+      }
       logger.info("Target text: " + targetText);
       logger.info(String.format("Position from ocr engine: (x:%f, y:%f)", pos.x, pos.y));
       return pos;
@@ -112,7 +112,8 @@ public class ScreenContentValidationAction extends ValidationAction {
   private boolean validateBasedOnOCR(
       String targetText, ActionContext actionContext, AndroidDeviceDriver androidDeviceDriver) {
     Position pos =
-        positionHelper.getPositionFromScreenByORC(targetText, androidDeviceDriver, actionContext);
+        positionHelper.getPositionFromScreenByORC(
+            targetText, androidDeviceDriver, actionContext, getOcrSearchBounds());
     if (pos.isValidPos()) {
       validateInfo =
           String.format("Found targetText: %s at Position %s", targetText, pos);
@@ -123,6 +124,22 @@ public class ScreenContentValidationAction extends ValidationAction {
     return pos.isValidPos();
   }
 
+  /**
+   * Gets the region OCR mode should look at, based on the selected bounds and search type. Null
+   * means full screen.
+   */
+  private Bounds getOcrSearchBounds() {
+    if (selectedBound == null
+        || screenContentSearchType == null
+        || screenContentSearchType == ScreenContentSearchType.FULLSCREEN
+        || screenContentSearchType == ScreenContentSearchType.FULLSCREEN_CONTEXT
+        || screenContentSearchType == ScreenContentSearchType.UNKNOWN
+        || selectedBound.areaSize() == 0) {
+      return null;
+    }
+    return selectedBound.getBoundsFromSearchType(screenContentSearchType);
+  }
+
   @Override
   protected boolean validateRaw(
       ActionContext actionContext, AndroidDeviceDriver androidDeviceDriver)
@@ -79,6 +79,11 @@ public class SwipeAction extends BaseAction {
     super.updateCommonFields(baseAction);
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext) {
     Position startPos = new Position(this.startX, this.startY);
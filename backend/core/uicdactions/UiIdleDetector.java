@@ -0,0 +1,102 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.uicdactions;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.uicd.backend.core.devicesdriver.AndroidDeviceDriver;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Waits for the UI of a device to settle after an action.
+ *
+ * <p>The UI hierarchy is dumped repeatedly, the UI is idle once the hash of the dump stays the same
+ * for {@link #STABLE_SAMPLES} samples in a row. The wait never goes over the given maximum, which
+ * is the fixed delay the action used to sleep.
+ */
+class UiIdleDetector {
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  // Consecutive samples equal to the previous one, before the UI is considered idle.
+  private static final int STABLE_SAMPLES = 2;
+  // Let the device start reacting to the action before the first sample.
+  private static final Duration FIRST_SAMPLE_DELAY = Duration.ofMillis(200);
+  private static final Duration SAMPLE_INTERVAL = Duration.ofMillis(150);
+
+  private UiIdleDetector() {}
+
+  /**
+   * Returns when the UI is idle, the max wait is over, or {@code cancelled} returns true. While the
+   * UI can not be dumped, it is not idle.
+   */
+  static void waitForIdle(
+      AndroidDeviceDriver androidDeviceDriver, long maxWaitMs, BooleanSupplier cancelled)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + maxWaitMs;
+    long firstSample =
+        Math.min(deadline, System.currentTimeMillis() + FIRST_SAMPLE_DELAY.toMillis());
+    if (!sleepUntil(firstSample, cancelled)) {
+      return;
+    }
+    HashCode previous = null;
+    int stableSamples = 0;
+    long remaining;
+    while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+      // One dump bounded by the time left, a failed dump counts as a UI still changing.
+      HashCode current = hashOf(androidDeviceDriver.fetchCurrentXMLOnce((int) remaining));
+      stableSamples = current != null && current.equals(previous) ? stableSamples + 1 : 0;
+      if (stableSamples >= STABLE_SAMPLES) {
+        logger.info(
+            String.format(
+                "UI idle, %d ms before the max wait.", deadline - System.currentTimeMillis()));
+        return;
+      }
+      previous = current;
+      if (!sleepUntil(
+          Math.min(deadline, System.currentTimeMillis() + SAMPLE_INTERVAL.toMillis()),
+          cancelled)) {
+        return;
+      }
+    }
+  }
+
+  private static HashCode hashOf(List<String> xmls) {
+    if (xmls.isEmpty()) {
+      return null;
+    }
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (String xml : xmls) {
+      hasher.putUnencodedChars(xml);
+    }
+    return hasher.hash();
+  }
+
+  /** Sleeps in small steps until the time, returns false if cancelled in the meantime. */
+  private static boolean sleepUntil(long timeMillis, BooleanSupplier cancelled)
+      throws InterruptedException {
+    long remaining;
+    while ((remaining = timeMillis - System.currentTimeMillis()) > 0) {
+      Thread.sleep(Math.min(remaining, SAMPLE_INTERVAL.toMillis()));
+      if (cancelled.getAsBoolean()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
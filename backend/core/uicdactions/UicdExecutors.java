@@ -0,0 +1,120 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.uicdactions;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Threads used by playback and by the device I/O around it: adb processes, http to the dumper,
+ * sockets and sleeps.
+ *
+ * <p>Nearly all of that work is blocked waiting, so on a JVM with virtual threads every task gets
+ * its own virtual thread. On older JVMs tasks run on a bounded pool of daemon platform threads.
+ * Virtual threads are looked up by reflection, the code still builds and runs on Java 8.
+ */
+public final class UicdExecutors {
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final int PLAYBACK_MAX_PLATFORM_THREADS = 32;
+  private static final long IDLE_THREAD_TIMEOUT_SEC = 60;
+  private static final boolean VIRTUAL_THREADS_SUPPORTED =
+      newVirtualThreadFactory("uicd-probe-") != null;
+
+  private static ExecutorService playbackExecutor;
+
+  private UicdExecutors() {}
+
+  public static boolean isVirtualThreadSupported() {
+    return VIRTUAL_THREADS_SUPPORTED;
+  }
+
+  /** Shared executor of the devices played in parallel. */
+  public static synchronized ExecutorService getPlaybackExecutor() {
+    if (playbackExecutor == null) {
+      playbackExecutor = newExecutor("playback", PLAYBACK_MAX_PLATFORM_THREADS);
+      logger.info(
+          "Playback runs on "
+              + (VIRTUAL_THREADS_SUPPORTED ? "virtual threads." : "platform threads."));
+    }
+    return playbackExecutor;
+  }
+
+  /**
+   * Creates an executor running each task on its own virtual thread, or on at most {@code
+   * maxPlatformThreads} daemon threads when virtual threads are not supported. Extra tasks wait in
+   * line on platform threads.
+   */
+  public static ExecutorService newExecutor(String name, int maxPlatformThreads) {
+    if (VIRTUAL_THREADS_SUPPORTED) {
+      try {
+        return (ExecutorService)
+            Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, newVirtualThreadFactory(name + "-"));
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.warning("Failed to create virtual thread executor: " + e.getMessage());
+      }
+    }
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            maxPlatformThreads,
+            maxPlatformThreads,
+            IDLE_THREAD_TIMEOUT_SEC,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /** Starts a long running task, on a virtual thread if supported, else on a daemon thread. */
+  public static Thread startThread(String name, Runnable task) {
+    Thread thread = null;
+    if (VIRTUAL_THREADS_SUPPORTED) {
+      ThreadFactory factory = newVirtualThreadFactory(name);
+      thread = factory == null ? null : factory.newThread(task);
+    }
+    if (thread == null) {
+      thread = new Thread(task);
+      thread.setDaemon(true);
+    }
+    thread.setName(name);
+    thread.start();
+    return thread;
+  }
+
+  /** Returns Thread.ofVirtual().name(prefix, 0).factory(), or null before Java 21. */
+  private static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder =
+          builderClass
+              .getMethod("name", String.class, long.class)
+              .invoke(builder, namePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Not supported, or a preview feature not enabled.
+      return null;
+    }
+  }
+}
@@ -57,6 +57,11 @@ public class ZoomAction extends BaseAction {
     }
   }
 
+  @Override
+  protected boolean canEndWaitWhenUiIdle() {
+    return true;
+  }
+
   @Override
   protected int play(AndroidDeviceDriver androidDeviceDriver, ActionContext actionContext)
       throws UicdDeviceHttpConnectionResetException {
@@ -64,6 +64,19 @@ public class HttpProxyUtils {
     return ret;
   }
 
+  /**
+   * Sends one get request, without retries, failing if the server does not answer within the
+   * timeout.
+   */
+  public static String getRequestAsString(String url, int timeoutMs) throws IOException {
+    return Request.Get(url)
+        .connectTimeout(timeoutMs)
+        .socketTimeout(timeoutMs)
+        .execute()
+        .returnContent()
+        .asString(Consts.UTF_8);
+  }
+
   public static String postRequestAsString(String url, String request)
       throws UicdDeviceHttpConnectionResetException {
     logger.info("post request to xmldumper:" + url);
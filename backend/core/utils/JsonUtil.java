@@ -14,33 +14,91 @@
 
 package com.google.uicd.backend.core.utils;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /** Helper class for Json */
 public class JsonUtil {
   private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  // Never configured after creation, shared so that the serializers are introspected once.
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  // Json never starts with it, marks the values written by toCompressedJson.
+  private static final String COMPRESSED_JSON_PREFIX = "gzip:";
+
+  /** Returns the shared reader of the type, readers are immutable and thread safe. */
+  public static ObjectReader readerFor(TypeReference<?> typeRef) {
+    return MAPPER.readerFor(typeRef);
+  }
+
+  /** Returns the shared writer, writers are immutable and thread safe. */
+  public static ObjectWriter writer() {
+    return MAPPER.writer();
+  }
 
   public static String toJson(Object value) {
     String jsonDataString = "";
-    ObjectMapper mapper = new ObjectMapper();
     try {
-      jsonDataString = mapper.writeValueAsString(value);
+      jsonDataString = writer().writeValueAsString(value);
     } catch (JsonProcessingException e) {
       logger.warning("Error while converting to json: " + e.getMessage());
     }
     return jsonDataString;
   }
 
+  /**
+   * Writes the value to the stream as it is serialized, without building the whole json string.
+   * The stream is closed when done.
+   */
+  public static void writeJson(Object value, OutputStream out, boolean gzip) throws IOException {
+    try (OutputStream target = gzip ? new GZIPOutputStream(out) : out) {
+      writer().writeValue(target, value);
+    }
+  }
+
+  /**
+   * Returns the gzip compressed json of the value, base64 encoded so that it fits in a text
+   * column. See {@link #openCompressedJson}.
+   */
+  public static String toCompressedJson(Object value) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(COMPRESSED_JSON_PREFIX.getBytes(US_ASCII));
+    writeJson(value, Base64.getEncoder().wrap(out), true);
+    return out.toString(US_ASCII.name());
+  }
+
+  /** Opens the json written by {@link #toCompressedJson}, plain json is read as it is. */
+  public static InputStream openCompressedJson(String stored) throws IOException {
+    if (!stored.startsWith(COMPRESSED_JSON_PREFIX)) {
+      return new ByteArrayInputStream(stored.getBytes(UTF_8));
+    }
+    InputStream encoded =
+        new ByteArrayInputStream(
+            stored.getBytes(US_ASCII),
+            COMPRESSED_JSON_PREFIX.length(),
+            stored.length() - COMPRESSED_JSON_PREFIX.length());
+    return new GZIPInputStream(Base64.getDecoder().wrap(encoded));
+  }
+
   public static <T extends Object> T fromJson(String jsonDataString, TypeReference<T> typeRef) {
-    ObjectMapper mapper = new ObjectMapper();
     T obj = null;
     try {
-      obj = mapper.readValue(jsonDataString, typeRef);
+      obj = readerFor(typeRef).readValue(jsonDataString);
     } catch (IOException e) {
       logger.warning("Error while converting from json: " + e.getMessage());
     }
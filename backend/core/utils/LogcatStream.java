@@ -0,0 +1,210 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.uicd.backend.core.config.UicdConfig;
+import com.google.uicd.backend.core.uicdactions.UicdExecutors;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * A long running "adb logcat" of one device, tailed into a bounded buffer of timestamped lines.
+ *
+ * <p>logcat without -d first prints the lines already in the device buffer and then keeps
+ * following, so the buffer holds the same lines a dump would, without running adb per validation.
+ * The oldest lines are dropped once the buffer is full.
+ */
+public class LogcatStream {
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final int MAX_BUFFERED_LINES = 50000;
+  // Commands going through a shell, or changing the device buffer, can not be streamed.
+  private static final Pattern STREAMABLE_COMMAND =
+      Pattern.compile("^(adb\\s+)?logcat(\\s+[^|<>;&]*)?$");
+  private static final Pattern NON_STREAMABLE_ARGS =
+      Pattern.compile("(^|\\s)(-d|-c|-g|-f|-t|-T|--clear|--dump|--file)(\\s|=|$)");
+
+  private final String deviceId;
+  private final List<String> logcatArgs;
+  private final Deque<LogcatLine> lines = new ArrayDeque<>();
+  private long nextSequence = 0;
+  private Process process;
+  // Set once the manager dropped the stream, it is not started again.
+  private boolean stopped = false;
+
+  LogcatStream(String deviceId, List<String> logcatArgs) {
+    this.deviceId = deviceId;
+    this.logcatArgs = logcatArgs;
+  }
+
+  /**
+   * Returns the logcat arguments of the command line, or empty if the command line is not a plain
+   * logcat command and has to be run the usual way.
+   */
+  public static Optional<List<String>> parseLogcatArgs(String commandLine) {
+    String command = commandLine.trim();
+    if (!STREAMABLE_COMMAND.matcher(command).matches()
+        || NON_STREAMABLE_ARGS.matcher(command).find()) {
+      return Optional.empty();
+    }
+    List<String> words = Splitter.onPattern("\\s+").omitEmptyStrings().splitToList(command);
+    int logcatIndex = words.indexOf("logcat");
+    return Optional.of(new ArrayList<>(words.subList(logcatIndex + 1, words.size())));
+  }
+
+  /** Starts adb if it is not running, it is restarted when the device came back after a reboot. */
+  synchronized void ensureStarted() throws IOException {
+    if (stopped) {
+      throw new IOException("Logcat stream of " + deviceId + " is stopped.");
+    }
+    if (process != null && process.isAlive()) {
+      return;
+    }
+    List<String> command = new ArrayList<>();
+    command.add(UicdConfig.getInstance().getAdbShellPath());
+    command.add("-s");
+    command.add(deviceId);
+    command.add("logcat");
+    command.addAll(logcatArgs);
+    logger.info("Start logcat stream: " + String.join(" ", command));
+    lines.clear();
+    process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    Process startedProcess = process;
+    UicdExecutors.startThread("logcat-" + deviceId, () -> readLines(startedProcess));
+  }
+
+  private void readLines(Process source) {
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(source.getInputStream(), UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        append(line);
+      }
+    } catch (IOException e) {
+      logger.info(String.format("Logcat stream of %s closed: %s", deviceId, e.getMessage()));
+    }
+    // adb exits when the device goes away, the buffer is refilled when the stream is restarted.
+    synchronized (this) {
+      if (process == source) {
+        lines.clear();
+      }
+    }
+  }
+
+  /** Stops adb and drops the buffered lines. */
+  synchronized void stop() {
+    stopped = true;
+    if (process != null) {
+      process.destroy();
+      process = null;
+    }
+    lines.clear();
+    notifyAll();
+  }
+
+  private synchronized void append(String line) {
+    if (lines.size() == MAX_BUFFERED_LINES) {
+      lines.removeFirst();
+    }
+    lines.addLast(new LogcatLine(nextSequence++, System.currentTimeMillis(), line));
+    notifyAll();
+  }
+
+  /** Returns the buffered lines received at or after the given time. */
+  public synchronized List<String> getLinesSince(long fromTimeMillis) {
+    List<String> result = new ArrayList<>();
+    Iterator<LogcatLine> newestFirst = lines.descendingIterator();
+    while (newestFirst.hasNext()) {
+      LogcatLine line = newestFirst.next();
+      if (line.receivedTimeMillis < fromTimeMillis) {
+        break;
+      }
+      result.add(line.text);
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  /**
+   * Returns the first line matching the matcher, looking at the buffered lines first and then
+   * waiting for new ones until the deadline. Returns empty if no line matched in time, with a
+   * deadline in the past only the buffered lines are checked.
+   *
+   * <p>Lines are matched on a copy, the reader thread keeps appending in the meantime.
+   */
+  public Optional<String> awaitMatch(Predicate<String> matcher, long deadlineMillis)
+      throws InterruptedException {
+    long nextToCheck = 0;
+    while (true) {
+      List<String> newLines;
+      synchronized (this) {
+        while (nextSequence <= nextToCheck) {
+          long remaining = deadlineMillis - System.currentTimeMillis();
+          if (remaining <= 0) {
+            return Optional.empty();
+          }
+          wait(remaining);
+        }
+        newLines = getLinesFrom(nextToCheck);
+        nextToCheck = nextSequence;
+      }
+      for (String line : newLines) {
+        if (matcher.test(line)) {
+          return Optional.of(line);
+        }
+      }
+    }
+  }
+
+  private List<String> getLinesFrom(long fromSequence) {
+    List<String> result = new ArrayList<>();
+    Iterator<LogcatLine> newestFirst = lines.descendingIterator();
+    while (newestFirst.hasNext()) {
+      LogcatLine line = newestFirst.next();
+      if (line.sequence < fromSequence) {
+        break;
+      }
+      result.add(line.text);
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  private static class LogcatLine {
+    final long sequence;
+    final long receivedTimeMillis;
+    final String text;
+
+    LogcatLine(long sequence, long receivedTimeMillis, String text) {
+      this.sequence = sequence;
+      this.receivedTimeMillis = receivedTimeMillis;
+      this.text = text;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one {@link LogcatStream} per device and logcat arguments, started on first use and kept
+ * running for the following validations.
+ *
+ * <p>Every stream holds an adb process, a reader thread and a buffer, so only the most recently
+ * used streams of a device are kept and the others are stopped. Streams of a device are stopped
+ * when the devices are initialized again.
+ */
+public class LogcatStreamManager {
+  private static final int MAX_STREAMS_PER_DEVICE = 4;
+  private static LogcatStreamManager instance;
+
+  // By device id, then by logcat arguments in access order. Guarded by this.
+  private final Map<String, LinkedHashMap<String, LogcatStream>> deviceStreams = new HashMap<>();
+
+  public static synchronized LogcatStreamManager getInstance() {
+    if (instance == null) {
+      instance = new LogcatStreamManager();
+    }
+    return instance;
+  }
+
+  private LogcatStreamManager() {}
+
+  public LogcatStream getStream(String deviceId, List<String> logcatArgs) throws IOException {
+    LogcatStream stream;
+    synchronized (this) {
+      LinkedHashMap<String, LogcatStream> streams =
+          deviceStreams.computeIfAbsent(
+              deviceId, id -> new LinkedHashMap<>(16, 0.75f, true /* accessOrder */));
+      String key = String.join(" ", logcatArgs);
+      stream = streams.get(key);
+      if (stream == null) {
+        stream = new LogcatStream(deviceId, logcatArgs);
+        streams.put(key, stream);
+        Iterator<LogcatStream> leastRecentlyUsed = streams.values().iterator();
+        while (streams.size() > MAX_STREAMS_PER_DEVICE) {
+          leastRecentlyUsed.next().stop();
+          leastRecentlyUsed.remove();
+        }
+      }
+    }
+    stream.ensureStarted();
+    return stream;
+  }
+
+  /** Stops the streams of the device. */
+  public synchronized void stopStreams(String deviceId) {
+    Map<String, LogcatStream> streams = deviceStreams.remove(deviceId);
+    if (streams != null) {
+      streams.values().forEach(LogcatStream::stop);
+    }
+  }
+}
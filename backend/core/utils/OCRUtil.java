@@ -16,9 +16,17 @@ package com.google.uicd.backend.core.utils;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ascii;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
 import com.google.uicd.backend.core.xmlparser.Bounds;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -26,9 +34,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import javax.imageio.ImageIO;
 
 /**
  * The class holds all OCR related utils, using tesseract algorithm to do text processing in images.
@@ -53,8 +64,24 @@ public class OCRUtil {
   private static final String OUTPUT_FILE_TYPE = "tsv";
   private static final String CMD_SEPARATOR = " ";
   private static final String SET_LIB_PATH_CMD = "LD_LIBRARY_PATH=%s";
+  private static final int OCR_RESULT_CACHE_SIZE = 32;
+  private static final String ROI_IMAGE_SUFFIX = "_roi.png";
+  // Tesseract is most accurate when the text height is around 30px, a region smaller than this is
+  // most likely a single line of small text, so it is upscaled before recognition.
+  private static final int ROI_UPSCALE_MAX_HEIGHT_PX = 150;
+  private static final int ROI_UPSCALE_FACTOR = 2;
   protected static Logger logger = LogManager.getLogManager().getLogger("uicd");
 
+  // Tesseract output keyed by the content hash of the screenshot. Repeated lookups against an
+  // unchanged screen (e.g. several OCR clicks or validations on the same page) skip the engine.
+  private static final Cache<String, Map<String, List<Bounds>>> ocrResultCache =
+      CacheBuilder.newBuilder().maximumSize(OCR_RESULT_CACHE_SIZE).build();
+
+  // Limits the number of tesseract processes running at the same time, each one loads the full
+  // language model, so running one per device in PLAYALL mode will thrash the host.
+  private static final Semaphore tesseractSlots =
+      new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), true);
+
   private final CommandLineUtil commandLineUtil;
 
   /** Default Constructor. */
@@ -97,11 +124,99 @@ public class OCRUtil {
   }
 
   /**
-   * Get information from the image generated from the adb dump.
+   * Get all the existing bounds in the given region of the image.
+   *
+   * <p>Only the region is sent to the engine, which is much faster than full screen OCR on high
+   * resolution devices. Small regions are upscaled before recognition. The returned bounds are in
+   * the coordinates of the full image, same as {@link #getBoundsOfText(String, String)}.
+   *
+   * @param text the target text
+   * @param imagePath the path of the full screen image
+   * @param region the region to search in, in image pixels. Null means the whole image.
+   */
+  public List<Bounds> getBoundsOfText(String text, String imagePath, Bounds region) {
+    if (region == null) {
+      return getBoundsOfText(text, imagePath);
+    }
+    BufferedImage image;
+    try {
+      image = ImageIO.read(new File(imagePath));
+    } catch (IOException e) {
+      logger.severe(TAG + ": Can not read image " + imagePath + ", " + e.getMessage());
+      return new ArrayList<>();
+    }
+    if (image == null) {
+      return new ArrayList<>();
+    }
+    int x1 = (int) Math.max(0, Math.floor(region.getX1()));
+    int y1 = (int) Math.max(0, Math.floor(region.getY1()));
+    int x2 = (int) Math.min(image.getWidth(), Math.ceil(region.getX2()));
+    int y2 = (int) Math.min(image.getHeight(), Math.ceil(region.getY2()));
+    if (x2 <= x1 || y2 <= y1) {
+      logger.warning(TAG + ": Invalid OCR region " + region + ", fallback to full image.");
+      return getBoundsOfText(text, imagePath);
+    }
+    if (x1 == 0 && y1 == 0 && x2 == image.getWidth() && y2 == image.getHeight()) {
+      return getBoundsOfText(text, imagePath);
+    }
+
+    BufferedImage roiImage = image.getSubimage(x1, y1, x2 - x1, y2 - y1);
+    int scale = 1;
+    if (roiImage.getHeight() < ROI_UPSCALE_MAX_HEIGHT_PX) {
+      scale = ROI_UPSCALE_FACTOR;
+      roiImage =
+          ImageUtil.resize(roiImage, roiImage.getWidth() * scale, roiImage.getHeight() * scale);
+    }
+    String roiImagePath = imagePath.replaceFirst("\\.png$", "") + ROI_IMAGE_SUFFIX;
+    try {
+      ImageIO.write(roiImage, "png", new File(roiImagePath));
+    } catch (IOException e) {
+      logger.severe(TAG + ": Can not write image " + roiImagePath + ", " + e.getMessage());
+      return new ArrayList<>();
+    }
+
+    List<Bounds> allBounds = new ArrayList<>();
+    for (Bounds bounds : getBoundsOfText(text, roiImagePath)) {
+      allBounds.add(
+          new Bounds(
+              bounds.getX1() / scale + x1,
+              bounds.getY1() / scale + y1,
+              bounds.getX2() / scale + x1,
+              bounds.getY2() / scale + y1));
+    }
+    return allBounds;
+  }
+
+  /**
+   * Get information from the image generated from the adb dump. Results are cached by the content
+   * hash of the image, so the engine only runs when the screen actually changed.
    *
    * @param imagePath the tmp path for the dump image
    */
   private Map<String, List<Bounds>> processImage(String imagePath) {
+    String imageHash;
+    try {
+      imageHash = Hashing.sha256().hashBytes(Files.readAllBytes(Paths.get(imagePath))).toString();
+    } catch (IOException e) {
+      logger.severe(TAG + ": Can not read image " + imagePath + ", " + e.getMessage());
+      return new HashMap<>();
+    }
+    try {
+      return ocrResultCache.get(imageHash, () -> runTesseract(imagePath));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      logger.severe(TAG + ": " + e.getCause().getMessage());
+    }
+    return new HashMap<>();
+  }
+
+  /** Clears the cached OCR results. */
+  @VisibleForTesting
+  static void clearCache() {
+    ocrResultCache.invalidateAll();
+  }
+
+  private Map<String, List<Bounds>> runTesseract(String imagePath)
+      throws UicdExternalCommandException, InterruptedException {
     List<String> cmdParts = new ArrayList<>();
     String tesseractBasePath =
         Paths.get(
@@ -122,14 +237,14 @@ public class OCRUtil {
     cmdParts.add(OUTPUT_FILE_TYPE);
     String tesseractCmd = String.join(CMD_SEPARATOR, cmdParts);
 
+    List<String> tessResultList = new ArrayList<>();
+    tesseractSlots.acquire();
     try {
-      List<String> tessResultList = new ArrayList<>();
       commandLineUtil.execute(tesseractCmd, tessResultList, true);
-      return getTextAndBoundsFromTessRecords(tessResultList);
-    } catch (UicdExternalCommandException e) {
-      logger.severe(TAG + ": " + e.getMessage());
+    } finally {
+      tesseractSlots.release();
     }
-    return new HashMap<>();
+    return getTextAndBoundsFromTessRecords(tessResultList);
   }
 
   /**
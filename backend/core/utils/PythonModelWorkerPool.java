@@ -0,0 +1,230 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.core.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.uicd.backend.core.config.UicdConfig;
+import com.google.uicd.backend.core.exceptions.UicdException;
+import com.google.uicd.backend.core.uicdactions.UicdExecutors;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+
+/**
+ * Pool of long lived python processes running the image validation model.
+ *
+ * <p>Starting python and loading the model takes much longer than the prediction itself, so the
+ * processes are kept alive and reused between validations. Callers wait in line for an idle
+ * worker, a worker that crashes or times out is killed and restarted on its next request.
+ *
+ * <p>Requests and responses are utf-8 json, each one prefixed by a 4 bytes big-endian length. See
+ * scripts/model_worker.py.
+ */
+public class PythonModelWorkerPool {
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final String PYTHON3 = "python3";
+  private static final String SCRIPTS_FOLDER_NAME = "scripts";
+  private static final String WORKER_SCRIPT = "model_worker.py";
+  private static final String PRIVATE_KEY_JSON = "image_validation_bucket_key.json";
+  private static final String WEIGHTS_PATH_KEY = "weights_path";
+  private static final String IMAGE_PATH_KEY = "image_path";
+  private static final String PREDICTIONS_KEY = "predictions";
+  private static final String ERROR_KEY = "error";
+  // The first request of each weights file downloads and loads the model.
+  private static final int REQUEST_TIMEOUT_IN_SECONDS = 120;
+
+  private static PythonModelWorkerPool instance;
+
+  private final BlockingQueue<Worker> idleWorkers;
+  private final List<Worker> allWorkers = new ArrayList<>();
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final ExecutorService ioExecutor;
+
+  public static synchronized PythonModelWorkerPool getInstance() {
+    if (instance == null) {
+      instance = new PythonModelWorkerPool(UicdConfig.getInstance().getMlWorkerPoolSize());
+    }
+    return instance;
+  }
+
+  @VisibleForTesting
+  PythonModelWorkerPool(int poolSize) {
+    poolSize = Math.max(1, poolSize);
+    idleWorkers = new ArrayBlockingQueue<>(poolSize);
+    // A timed out exchange keeps its thread until the worker is killed, leave room for one per
+    // worker on top of the running ones.
+    ioExecutor = UicdExecutors.newExecutor("ml-worker-io", poolSize * 2);
+    for (int i = 0; i < poolSize; i++) {
+      Worker worker = new Worker(i);
+      allWorkers.add(worker);
+      idleWorkers.add(worker);
+    }
+  }
+
+  /**
+   * Returns prediction values of the image, using the given weights file.
+   *
+   * @param weightsPath weights file in cloud storage.
+   * @param imagePath local path of the image to validate.
+   * @return the prediction values, each between 0 and 1.
+   */
+  public List<Double> predict(String weightsPath, String imagePath) throws UicdException {
+    Worker worker;
+    try {
+      worker = idleWorkers.poll(REQUEST_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UicdException("Interrupted while waiting for ML worker.");
+    }
+    if (worker == null) {
+      throw new UicdException("No ML worker available, all of them are busy.");
+    }
+    try {
+      return worker.predict(weightsPath, imagePath);
+    } finally {
+      idleWorkers.offer(worker);
+    }
+  }
+
+  /** Stops all the python processes, they will be started again on the next request. */
+  public void shutdown() {
+    for (Worker worker : allWorkers) {
+      synchronized (worker) {
+        worker.stop();
+      }
+    }
+  }
+
+  private static String getWorkerScriptFilePath() {
+    return Paths.get(UicdConfig.getInstance().getBaseFolder(), SCRIPTS_FOLDER_NAME, WORKER_SCRIPT)
+        .toString();
+  }
+
+  private static String getCloudCredentialsPath() {
+    return Paths.get(UicdConfig.getInstance().getBaseFolder(), PRIVATE_KEY_JSON).toString();
+  }
+
+  /** One python process, only used by one request at a time. */
+  private class Worker {
+    private final int index;
+    private Process process;
+    private DataOutputStream toWorker;
+    private DataInputStream fromWorker;
+
+    Worker(int index) {
+      this.index = index;
+    }
+
+    synchronized List<Double> predict(String weightsPath, String imagePath)
+        throws UicdException {
+      ensureStarted();
+      Map<String, String> request = new HashMap<>();
+      request.put(WEIGHTS_PATH_KEY, weightsPath);
+      request.put(IMAGE_PATH_KEY, imagePath);
+
+      Future<JsonNode> future = ioExecutor.submit(() -> exchange(request));
+      JsonNode response;
+      try {
+        response = future.get(REQUEST_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+      } catch (TimeoutException e) {
+        stop();
+        throw new UicdException(
+            String.format("ML worker %d timed out, it will be restarted.", index));
+      } catch (ExecutionException e) {
+        stop();
+        throw new UicdException(
+            String.format("ML worker %d crashed: %s", index, e.getCause().getMessage()));
+      } catch (InterruptedException e) {
+        stop();
+        Thread.currentThread().interrupt();
+        throw new UicdException("Interrupted while waiting for ML prediction.");
+      }
+
+      if (response.has(ERROR_KEY)) {
+        throw new UicdException("ML prediction failed: " + response.get(ERROR_KEY).asText());
+      }
+      List<Double> predictions = new ArrayList<>();
+      for (JsonNode value : response.path(PREDICTIONS_KEY)) {
+        predictions.add(value.asDouble());
+      }
+      return predictions;
+    }
+
+    private JsonNode exchange(Map<String, String> request) throws IOException {
+      byte[] payload = mapper.writeValueAsBytes(request);
+      toWorker.writeInt(payload.length);
+      toWorker.write(payload);
+      toWorker.flush();
+
+      byte[] responsePayload = new byte[fromWorker.readInt()];
+      fromWorker.readFully(responsePayload);
+      return mapper.readTree(responsePayload);
+    }
+
+    private void ensureStarted() throws UicdException {
+      if (process != null && process.isAlive()) {
+        return;
+      }
+      stop();
+      String scriptPath = getWorkerScriptFilePath();
+      logger.info(String.format("Starting ML worker %d: %s", index, scriptPath));
+      try {
+        process =
+            new ProcessBuilder(PYTHON3, scriptPath, getCloudCredentialsPath())
+                .directory(new File(scriptPath).getParentFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+      } catch (IOException e) {
+        throw new UicdException("Failed to start ML worker: " + e.getMessage());
+      }
+      toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    private void stop() {
+      if (process != null) {
+        // Closing stdin lets the worker exit by itself, destroy in case it is stuck.
+        try {
+          toWorker.close();
+        } catch (IOException e) {
+          logger.warning("Failed to close ML worker stdin: " + e.getMessage());
+        }
+        process.destroy();
+      }
+      process = null;
+      toWorker = null;
+      fromWorker = null;
+    }
+  }
+}
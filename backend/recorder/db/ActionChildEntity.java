@@ -0,0 +1,52 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.recorder.db;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Link from a compound action to a child that is not stored along with it, i.e. a compound or an
+ * image diff validation child. Lets the whole tree of a compound action be fetched in one query.
+ */
+@Entity
+@Table(name = "yui_testcase_children")
+public class ActionChildEntity {
+
+  @Id private String uuid;
+  private String parentUuid;
+  private String childUuid;
+
+  public ActionChildEntity() {}
+
+  public ActionChildEntity(String parentUuid, String childUuid) {
+    this.uuid = parentUuid + ":" + childUuid;
+    this.parentUuid = parentUuid;
+    this.childUuid = childUuid;
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public String getParentUuid() {
+    return parentUuid;
+  }
+
+  public String getChildUuid() {
+    return childUuid;
+  }
+}
@@ -14,43 +14,290 @@
 
 package com.google.uicd.backend.recorder.db;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.uicd.backend.core.constants.ActionType;
 import com.google.uicd.backend.core.db.ActionEntity;
 import com.google.uicd.backend.core.db.ActionStorageManager;
 import com.google.uicd.backend.core.uicdactions.BaseAction;
+import com.google.uicd.backend.core.uicdactions.CompoundAction;
+import com.google.uicd.backend.recorder.repositories.ActionChildRepository;
 import com.google.uicd.backend.recorder.repositories.ActionRepository;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.InvalidDataAccessResourceUsageException;
 import org.springframework.stereotype.Service;
 
 /** Implements the logic to save and load action to/from database */
 @Service
 public class DbActionStorageManager extends ActionStorageManager {
+  // Below that, parsing on the calling thread is faster than handing the work over.
+  private static final int PARALLEL_PARSE_MIN_ACTIONS = 16;
+  // Recording saves the new action and the workspace around it in a row, they are written once.
+  private static final long WRITE_BEHIND_DELAY_MS = 300;
+  private static final long MAX_RETRY_DELAY_MS = 30000;
+  private static final long MAX_SAVED_DETAILS_HASHES = 10000;
+
+  // Parsing is cpu bound, one thread per core.
+  private static final ExecutorService parseExecutor =
+      Executors.newFixedThreadPool(
+          Runtime.getRuntime().availableProcessors(),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("action-parse-%d").build());
+
   @Autowired private ActionRepository actionRepository;
+  @Autowired private ActionChildRepository actionChildRepository;
+
+  // Turned off when the database does not support the tree query, e.g. before MySQL 8.
+  private volatile boolean treeQueryEnabled = true;
+  // Turned off when the database has no table of the children links, e.g. not migrated yet.
+  private volatile boolean childLinksEnabled = true;
 
-  /** Serializes and saves action list into (db/filesystem) */
+  private final ScheduledExecutorService writeBehindExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("action-write-behind").build());
+  // Actions saved but not written yet, by action id. Guarded by itself.
+  private final Map<String, PendingSave> pendingSaves = new LinkedHashMap<>();
+  private boolean flushScheduled = false;
+  // Delay of the next flush after a failed write, doubled on each failure. Guarded by pendingSaves.
+  private long retryDelayMs = WRITE_BEHIND_DELAY_MS;
+  // Writes one flush at a time, so that an older version never overwrites a newer one.
+  private final Object flushLock = new Object();
+  // Hash of the details last written for each action, unchanged actions are not written again.
+  private final Cache<String, HashCode> savedDetailsHashes =
+      CacheBuilder.newBuilder().maximumSize(MAX_SAVED_DETAILS_HASHES).build();
+  // Change fingerprint of each action instance when it was last serialized, by identity. Actions
+  // that did not change since are not serialized again.
+  private final Cache<BaseAction, HashCode> snapshotFingerprints =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  /**
+   * Serializes and saves action list into (db/filesystem). The actions are cached right away and
+   * written shortly after, saves of the same action within the window are written once.
+   */
   @Override
   public boolean saveActions(List<BaseAction> actions) {
-    List<ActionEntity> actionEntities =
-        actions.stream()
-            .map(
-                action -> {
-                  loadRefImgIfImgDiffValAction(action);
-                  cachedMap.put(action.getActionId().toString(), action);
-                  return new ActionEntity(action);
-                })
-            .collect(Collectors.toList());
-    actionRepository.saveAll(actionEntities);
+    // Serialized on the calling thread, the recorder keeps changing the actions afterwards.
+    List<PendingSave> saves = new ArrayList<>();
+    for (BaseAction action : actions) {
+      // Taken before serializing, a change made meanwhile is serialized by the next save.
+      HashCode fingerprint = changeFingerprint(action);
+      if (!fingerprint.equals(snapshotFingerprints.getIfPresent(action))) {
+        saves.add(new PendingSave(action));
+        snapshotFingerprints.put(action, fingerprint);
+      }
+    }
+    actions.forEach(actionCache::put);
+    if (saves.isEmpty()) {
+      return true;
+    }
+    synchronized (pendingSaves) {
+      for (PendingSave save : saves) {
+        pendingSaves.put(save.entity.getUuid(), save);
+      }
+      scheduleFlush(WRITE_BEHIND_DELAY_MS);
+    }
     return true;
   }
 
+  /**
+   * Returns a hash of the modification counts of the action and of its children, which are stored
+   * along with it. It changes when the action or a child is updated, added, removed or moved.
+   */
+  private static HashCode changeFingerprint(BaseAction action) {
+    Hasher hasher = Hashing.murmur3_128().newHasher().putLong(action.getModificationCount());
+    if (action instanceof CompoundAction) {
+      for (BaseAction child : ((CompoundAction) action).childrenActions) {
+        hasher.putInt(System.identityHashCode(child));
+        hasher.putLong(child == null ? 0 : child.getModificationCount());
+      }
+    }
+    return hasher.hash();
+  }
+
+  /** Puts back the saves of a failed write, unless the actions were saved again since. */
+  private void requeueFailedSaves(List<PendingSave> saves) {
+    synchronized (pendingSaves) {
+      for (PendingSave save : saves) {
+        pendingSaves.putIfAbsent(save.entity.getUuid(), save);
+      }
+      scheduleFlush(retryDelayMs);
+      retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+    }
+  }
+
+  // Called with pendingSaves held.
+  private void scheduleFlush(long delayMs) {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      writeBehindExecutor.schedule(this::flushPendingSaves, delayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Writes the pending saves to the database, only the actions that changed since last write. A
+   * failed write is retried later, with a growing delay.
+   */
+  @PreDestroy
+  public void flushPendingSaves() {
+    synchronized (flushLock) {
+      List<PendingSave> saves;
+      synchronized (pendingSaves) {
+        saves = new ArrayList<>(pendingSaves.values());
+        pendingSaves.clear();
+        flushScheduled = false;
+      }
+      if (saves.isEmpty()) {
+        return;
+      }
+      List<PendingSave> changedSaves = new ArrayList<>();
+      Map<String, HashCode> changedHashes = new HashMap<>();
+      for (PendingSave save : saves) {
+        HashCode detailsHash = Hashing.murmur3_128().hashString(save.entity.getDetails(), UTF_8);
+        if (!detailsHash.equals(savedDetailsHashes.getIfPresent(save.entity.getUuid()))) {
+          changedSaves.add(save);
+          changedHashes.put(save.entity.getUuid(), detailsHash);
+        }
+      }
+      if (changedSaves.isEmpty()) {
+        return;
+      }
+      try {
+        actionRepository.saveAll(
+            changedSaves.stream().map(save -> save.entity).collect(Collectors.toList()));
+        savedDetailsHashes.putAll(changedHashes);
+      } catch (DataAccessException e) {
+        logger.severe(
+            String.format(
+                "Failed to save %d actions, will retry: %s", changedSaves.size(), e.getMessage()));
+        requeueFailedSaves(changedSaves);
+        return;
+      }
+      synchronized (pendingSaves) {
+        retryDelayMs = WRITE_BEHIND_DELAY_MS;
+      }
+      saveActionChildren(changedSaves);
+    }
+  }
+
+  /* clear the internal cache, after writing the pending saves so that reloads see them */
+  @Override
+  public void clearCache() {
+    flushPendingSaves();
+    savedDetailsHashes.invalidateAll();
+    super.clearCache();
+  }
+
   /** Gets list of action data from database by actionIds and converts to the Action objects */
   @Override
   public List<BaseAction> getBaseActionsFromStorage(List<String> actionIdList) {
-    List<ActionEntity> actionEntities = actionRepository.findByUuidIn(actionIdList);
-    return actionEntities.stream()
-        .map(actionEntity -> BaseAction.fromJson(actionEntity.getDetails()))
+    flushPendingSaves();
+    return parseActions(actionRepository.findByUuidIn(actionIdList));
+  }
+
+  /** Gets the action and its descendants in one query. */
+  @Override
+  protected List<BaseAction> getActionTreeFromStorage(String actionId) {
+    if (treeQueryEnabled) {
+      flushPendingSaves();
+      try {
+        return parseActions(actionRepository.findActionTree(actionId));
+      } catch (InvalidDataAccessResourceUsageException e) {
+        treeQueryEnabled = false;
+        logger.warning("Action tree query not supported, loading layer by layer: " + e);
+      } catch (DataAccessException e) {
+        logger.warning("Action tree query failed, loading layer by layer: " + e);
+      }
+    }
+    return super.getActionTreeFromStorage(actionId);
+  }
+
+  /**
+   * Replaces the links of the saved compound actions to their children not stored along with
+   * them, which {@link ActionRepository#findActionTree} follows.
+   */
+  private void saveActionChildren(List<PendingSave> saves) {
+    List<String> parentUuids = new ArrayList<>();
+    List<ActionChildEntity> children = new ArrayList<>();
+    for (PendingSave save : saves) {
+      if (save.childLinks != null) {
+        parentUuids.add(save.entity.getUuid());
+        children.addAll(save.childLinks);
+      }
+    }
+    if (parentUuids.isEmpty() || !childLinksEnabled) {
+      return;
+    }
+    try {
+      actionChildRepository.deleteByParentUuidIn(parentUuids);
+      actionChildRepository.saveAll(children);
+    } catch (InvalidDataAccessResourceUsageException e) {
+      childLinksEnabled = false;
+      logger.warning("Action children table not available, links are not saved: " + e);
+    } catch (DataAccessException e) {
+      // The tree is still loaded layer by layer without the links.
+      logger.warning("Failed to save action children: " + e.getMessage());
+    }
+  }
+
+  private List<BaseAction> parseActions(List<ActionEntity> actionEntities) {
+    if (actionEntities.size() < PARALLEL_PARSE_MIN_ACTIONS) {
+      return actionEntities.stream()
+          .map(actionEntity -> BaseAction.fromJson(actionEntity.getDetails()))
+          .filter(item -> item != null)
+          .collect(Collectors.toList());
+    }
+    List<CompletableFuture<BaseAction>> futures =
+        actionEntities.stream()
+            .map(
+                actionEntity ->
+                    CompletableFuture.supplyAsync(
+                        () -> BaseAction.fromJson(actionEntity.getDetails()), parseExecutor))
+            .collect(Collectors.toList());
+    return futures.stream()
+        .map(CompletableFuture::join)
         .filter(item -> item != null)
         .collect(Collectors.toList());
   }
+
+  /** Snapshot of a saved action, taken when it is saved. */
+  private static class PendingSave {
+    final ActionEntity entity;
+    // Links to the children not stored along with the compound action, null for other actions.
+    @Nullable final List<ActionChildEntity> childLinks;
+
+    PendingSave(BaseAction action) {
+      entity = new ActionEntity(action);
+      if (action instanceof CompoundAction) {
+        childLinks = new ArrayList<>();
+        for (BaseAction child : ((CompoundAction) action).childrenActions) {
+          if (child != null
+              && (child.getActionType() == ActionType.COMPOUND_ACTION
+                  || child.getActionType() == ActionType.IMAGE_DIFF_VALIDATION_ACTION)) {
+            childLinks.add(new ActionChildEntity(entity.getUuid(), child.getActionId().toString()));
+          }
+        }
+      } else {
+        childLinks = null;
+      }
+    }
+  }
 }
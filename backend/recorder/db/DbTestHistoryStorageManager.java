@@ -14,24 +14,126 @@
 
 package com.google.uicd.backend.recorder.db;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.uicd.backend.core.config.UicdConfig;
+import com.google.uicd.backend.core.uicdactions.ActionExecutionResult;
+import com.google.uicd.backend.core.utils.JsonUtil;
 import com.google.uicd.backend.recorder.repositories.TestHistoryRepository;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import javax.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 
 /** Implements the logic to save and load test history tree to/from database */
 @Service
 public class DbTestHistoryStorageManager {
+  private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final int QUEUE_CAPACITY = 256;
+  private static final int BATCH_SIZE = 32;
+  private static final long ENQUEUE_TIMEOUT_SEC = 10;
 
   @Autowired TestHistoryRepository testHistoryRepository;
 
+  // History waiting to be written, the details are serialized by the writer.
+  private final BlockingQueue<PendingHistory> pendingHistory =
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+  // Entries only leave the queue under this lock, once a flush returns everything queued before
+  // it is in the database.
+  private final Object flushLock = new Object();
+  private final ExecutorService writeBehindExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("history-write-behind").build());
+
   public void save(TestHistoryEntity testHistoryEntity) {
     testHistoryRepository.save(testHistoryEntity);
   }
 
+  /**
+   * Queues the history to be written in the background, the execution result is serialized and
+   * compressed into the test details by the writer.
+   *
+   * <p>When the queue is full the caller waits for room, and writes the history itself if the
+   * writer does not catch up in time.
+   */
+  public void saveAsync(TestHistoryEntity testHistoryEntity, ActionExecutionResult result) {
+    PendingHistory entry = new PendingHistory(testHistoryEntity, result);
+    boolean queued;
+    try {
+      queued = pendingHistory.offer(entry, ENQUEUE_TIMEOUT_SEC, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      queued = false;
+    }
+    if (!queued) {
+      logger.warning("Test history queue is full, writing on the caller thread.");
+      flushPendingHistory();
+      writeBatch(Collections.singletonList(entry));
+      return;
+    }
+    if (flushScheduled.compareAndSet(false, true)) {
+      writeBehindExecutor.execute(this::flushPendingHistory);
+    }
+  }
+
+  /** Writes all the queued history to the database, in batches. */
+  @PreDestroy
+  public void flushPendingHistory() {
+    synchronized (flushLock) {
+      // Entries queued from now on schedule another flush.
+      flushScheduled.set(false);
+      List<PendingHistory> batch = new ArrayList<>(BATCH_SIZE);
+      while (pendingHistory.drainTo(batch, BATCH_SIZE) > 0) {
+        writeBatch(batch);
+        batch.clear();
+      }
+    }
+  }
+
   public List<TestHistoryEntity> getTop50TestHistory() {
+    flushPendingHistory();
     return testHistoryRepository.findTop50ByCreatedByOrderByCreatedAtDesc(
         UicdConfig.getInstance().getCurrentUser());
   }
+
+  private void writeBatch(List<PendingHistory> batch) {
+    List<TestHistoryEntity> entities = new ArrayList<>(batch.size());
+    for (PendingHistory entry : batch) {
+      try {
+        // Long runs produce result trees larger than the column, they compress well.
+        entry.entity.setTestDetails(JsonUtil.toCompressedJson(entry.result));
+        entities.add(entry.entity);
+      } catch (IOException | RuntimeException e) {
+        logger.warning(
+            "Can not serialize test details of " + entry.entity.getUuid() + ": " + e.getMessage());
+      }
+    }
+    try {
+      testHistoryRepository.saveAll(entities);
+    } catch (DataAccessException e) {
+      logger.severe("Failed to save " + entities.size() + " test history records: " + e);
+    }
+  }
+
+  private static class PendingHistory {
+    final TestHistoryEntity entity;
+    final ActionExecutionResult result;
+
+    PendingHistory(TestHistoryEntity entity, ActionExecutionResult result) {
+      this.entity = entity;
+      this.result = result;
+    }
+  }
 }
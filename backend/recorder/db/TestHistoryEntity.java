@@ -14,12 +14,16 @@
 
 package com.google.uicd.backend.recorder.db;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import com.google.common.io.ByteStreams;
 import com.google.uicd.backend.core.utils.JsonUtil;
 import com.google.uicd.backend.core.utils.UicdCoreDelegator;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
 import java.util.List;
 import javax.persistence.Column;
@@ -86,6 +90,18 @@ public class TestHistoryEntity {
   public void setTestDetails(String testDetails) {
     this.testDetails = testDetails;
   }
+  /** Returns the json of the test details, decompressing them when they are stored compressed. */
+  public String readTestDetails() {
+    if (testDetails == null) {
+      return null;
+    }
+    try (InputStream in = JsonUtil.openCompressedJson(testDetails)) {
+      return new String(ByteStreams.toByteArray(in), UTF_8);
+    } catch (IOException e) {
+      UicdCoreDelegator.getInstance().logException(e);
+      return testDetails;
+    }
+  }
   public String getCreatedBy() {
     return createdBy;
   }
@@ -112,9 +128,8 @@ public class TestHistoryEntity {
   }
   public String toJson() {
     String jsonDataString = "";
-    ObjectMapper mapper = new ObjectMapper();
     try {
-      jsonDataString = mapper.writeValueAsString(this);
+      jsonDataString = JsonUtil.writer().writeValueAsString(this);
     } catch (JsonProcessingException e) {
       UicdCoreDelegator.getInstance().logException(e);
     }
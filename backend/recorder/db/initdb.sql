@@ -15,6 +15,12 @@ CREATE TABLE `yuidb`.`yui_testcase` (
   `created_at` timestamp DEFAULT CURRENT_TIMESTAMP NOT NULL,
    INDEX idx_action_type(`type`));
 
+CREATE TABLE `yuidb`.`yui_testcase_children` (
+  `uuid` VARCHAR(121) NOT NULL PRIMARY KEY,
+  `parent_uuid` VARCHAR(60) NOT NULL,
+  `child_uuid` VARCHAR(60) NOT NULL,
+  INDEX idx_parent_uuid(`parent_uuid`));
+
 CREATE TABLE `yuidb`.`yui_testcases_tree` (
   `uuid` VARCHAR(60) NOT NULL PRIMARY KEY,
   `user_id` VARCHAR(60),
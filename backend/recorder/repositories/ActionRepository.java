@@ -18,6 +18,8 @@ import com.google.uicd.backend.core.db.ActionEntity;
 import java.util.List;
 import java.util.Optional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 /** Handles action related database operations */
@@ -25,4 +27,15 @@ import org.springframework.stereotype.Repository;
 public interface ActionRepository extends JpaRepository<ActionEntity, String> {
   Optional<ActionEntity> findByUuid(String uuid);
   List<ActionEntity> findByUuidIn(List<String> actionIdList);
+
+  /** Returns the action and all its descendants linked in yui_testcase_children. */
+  @Query(
+      value =
+          "WITH RECURSIVE action_tree(uuid) AS ("
+              + " SELECT :rootUuid"
+              + " UNION SELECT c.child_uuid FROM yui_testcase_children c"
+              + " JOIN action_tree t ON c.parent_uuid = t.uuid)"
+              + " SELECT a.* FROM yui_testcase a JOIN action_tree t ON a.uuid = t.uuid",
+      nativeQuery = true)
+  List<ActionEntity> findActionTree(@Param("rootUuid") String rootUuid);
 }
\ No newline at end of file
@@ -17,6 +17,7 @@ package com.google.uicd.backend.recorder.services;
 import com.google.uicd.backend.controllers.responses.TestHistoryRecord;
 import com.google.uicd.backend.controllers.responses.TestHistoryResponse;
 import com.google.uicd.backend.core.exceptions.UicdException;
+import com.google.uicd.backend.core.uicdactions.ActionExecutionResult;
 import com.google.uicd.backend.recorder.db.DbTestHistoryStorageManager;
 import com.google.uicd.backend.recorder.db.TestHistoryEntity;
 import java.util.logging.LogManager;
@@ -38,6 +39,13 @@ public class TestHistoryManager {
     testHistoryStorageManager.save(testHistoryEntity);
   }
 
+  /**
+   * Saves the testHistoryEntity in the background, the execution result becomes its test details.
+   */
+  public void saveAsync(TestHistoryEntity testHistoryEntity, ActionExecutionResult result) {
+    testHistoryStorageManager.saveAsync(testHistoryEntity, result);
+  }
+
   /** Gets most recent 50 test history records, this api only used in the frontend. */
   public TestHistoryResponse getTop50TestHistory() throws UicdException {
     return TestHistoryResponse.create(
@@ -17,8 +17,10 @@ package com.google.uicd.backend.recorder.utils;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -29,27 +31,33 @@ import java.util.logging.Logger;
  */
 public class JsonUtilEx {
   private static final Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().registerModule(new JavaTimeModule());
+
+  /** Returns the shared reader of the type, with java 8 time support. */
+  public static ObjectReader readerFor(TypeReference<?> typeRef) {
+    return MAPPER.readerFor(typeRef);
+  }
 
   public static String toJson(Object value) {
     String jsonDataString = "";
-    ObjectMapper mapper = new ObjectMapper();
-    JavaTimeModule module = new JavaTimeModule();
-    mapper.registerModule(module);
     try {
-      jsonDataString = mapper.writeValueAsString(value);
+      jsonDataString = MAPPER.writeValueAsString(value);
     } catch (JsonProcessingException e) {
       logger.warning("Error while converting to json: " + e.getMessage());
     }
     return jsonDataString;
   }
 
+  /** Writes the value to the stream as it is serialized, the stream is closed when done. */
+  public static void writeJson(Object value, OutputStream out) throws IOException {
+    MAPPER.writeValue(out, value);
+  }
+
   public static <T extends Object> T fromJson(String jsonDataString, TypeReference<T> typeRef) {
-    ObjectMapper mapper = new ObjectMapper();
     T obj = null;
     try {
-      JavaTimeModule module = new JavaTimeModule();
-      mapper.registerModule(module);
-      obj = mapper.readValue(jsonDataString, typeRef);
+      obj = readerFor(typeRef).readValue(jsonDataString);
     } catch (IOException e) {
       logger.warning("Error while converting from json: " + e.getMessage());
     }
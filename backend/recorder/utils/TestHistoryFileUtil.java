@@ -20,6 +20,7 @@ import com.google.uicd.backend.core.exceptions.UicdException;
 import com.google.uicd.backend.recorder.db.TestHistoryEntity;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -63,11 +64,9 @@ public class TestHistoryFileUtil {
 
     List<TestHistoryEntity> top50TestHistoryEntity = new ArrayList<>();
     for (File file : files) {
-      try {
-        String testHistoryContent = new String(Files.readAllBytes(file.toPath()));
-        TestHistoryEntity testHistoryEntity =
-            JsonUtilEx.fromJson(testHistoryContent, new TypeReference<TestHistoryEntity>() {});
-        top50TestHistoryEntity.add(testHistoryEntity);
+      try (InputStream in = Files.newInputStream(file.toPath())) {
+        top50TestHistoryEntity.add(
+            JsonUtilEx.readerFor(new TypeReference<TestHistoryEntity>() {}).readValue(in));
       } catch (IOException e) {
         throw new UicdException("Can not export test history from file: " + file);
       }
@@ -86,10 +85,10 @@ public class TestHistoryFileUtil {
       TestHistoryEntity testHistoryEntity, Path testHistoryFolderPath) throws UicdException {
     try {
       FileUtils.forceMkdir(testHistoryFolderPath.toFile());
-      String content = JsonUtilEx.toJson(testHistoryEntity);
-      Files.write(
-          Paths.get(testHistoryFolderPath.toString(), testHistoryEntity.getUuid()),
-          content.getBytes());
+      JsonUtilEx.writeJson(
+          testHistoryEntity,
+          Files.newOutputStream(
+              Paths.get(testHistoryFolderPath.toString(), testHistoryEntity.getUuid())));
     } catch (IOException e) {
       throw new UicdException("Can not export test history: " + testHistoryEntity.getUuid());
     }
@@ -0,0 +1,99 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.recorder.websocket.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed capacity buffer of log messages, read independently by any number of subscribers.
+ *
+ * <p>Writers never block: once the buffer is full the oldest message is overwritten. Every
+ * subscriber keeps its own cursor, so each one sees every message written after it subscribed. A
+ * subscriber that falls more than the capacity behind skips ahead to the oldest message left, and
+ * is told how many it missed.
+ */
+public class LogRingBuffer {
+  private final String[] entries;
+  // Sequence number of the next message to write, the message n is stored at n % capacity.
+  private long nextSequence = 0;
+
+  public LogRingBuffer(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    entries = new String[capacity];
+  }
+
+  public synchronized void append(String message) {
+    entries[(int) (nextSequence % entries.length)] = message;
+    nextSequence++;
+    notifyAll();
+  }
+
+  /** Returns a subscriber starting after the last message written, older messages are not sent. */
+  public synchronized Subscriber subscribe() {
+    return new Subscriber(nextSequence);
+  }
+
+  private long oldestSequence() {
+    return Math.max(0, nextSequence - entries.length);
+  }
+
+  /** Cursor of one reader, not thread safe, meant to be used by a single thread. */
+  public class Subscriber {
+    private long cursor;
+    private long skipped;
+
+    private Subscriber(long cursor) {
+      this.cursor = cursor;
+    }
+
+    /**
+     * Returns the messages written since the previous call, waiting up to the timeout for at least
+     * one. Returns an empty list on timeout.
+     */
+    public List<String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+      List<String> messages = new ArrayList<>();
+      synchronized (LogRingBuffer.this) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (cursor == nextSequence) {
+          long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (remainingMillis <= 0) {
+            return messages;
+          }
+          LogRingBuffer.this.wait(remainingMillis);
+        }
+        long oldest = oldestSequence();
+        if (cursor < oldest) {
+          skipped += oldest - cursor;
+          cursor = oldest;
+        }
+        for (; cursor < nextSequence; cursor++) {
+          messages.add(entries[(int) (cursor % entries.length)]);
+        }
+      }
+      return messages;
+    }
+
+    /** Returns how many messages were overwritten before being read, and resets the count. */
+    public long takeSkippedCount() {
+      long count = skipped;
+      skipped = 0;
+      return count;
+    }
+  }
+}
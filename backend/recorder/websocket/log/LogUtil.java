@@ -14,16 +14,20 @@
 
 package com.google.uicd.backend.recorder.websocket.log;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-
+/** Log messages forwarded to the log websocket sessions. */
 public class LogUtil {
+  // Enough for a few minutes of verbose playback, older messages are dropped.
+  private static final int LOG_BUFFER_CAPACITY = 10000;
 
-  public static BlockingQueue<String> logs = new LinkedBlockingQueue<>();
+  private static final LogRingBuffer logs = new LogRingBuffer(LOG_BUFFER_CAPACITY);
 
   public static void writeToLog(String s) {
     if (s != null) {
-      logs.add(s);
+      logs.append(s);
     }
   }
+
+  public static LogRingBuffer.Subscriber subscribe() {
+    return logs.subscribe();
+  }
 }
@@ -15,39 +15,46 @@
 package com.google.uicd.backend.recorder.websocket.log;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import org.eclipse.jetty.websocket.api.Session;
 
+/** Sends the log messages to one websocket session, until the session is closed. */
 public class TailLogThread extends Thread {
 
   private static Logger logger = LogManager.getLogManager().getLogger("uicd");
 
   public TailLogThread(Session session) {
     this.session = session;
+    this.subscriber = LogUtil.subscribe();
+    setDaemon(true);
   }
 
-  private Session session;
+  private final Session session;
+  private final LogRingBuffer.Subscriber subscriber;
 
   @Override
   public void run() {
     try {
-      while (true) {
-        String value = null;
+      while (session.isOpen()) {
+        List<String> values;
         try {
-          value = LogUtil.logs.poll(1000, TimeUnit.MILLISECONDS);
+          values = subscriber.poll(1000, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
           logger.warning(e.getMessage());
+          return;
         }
-        if (value == null) {
-          continue;
+        long skipped = subscriber.takeSkippedCount();
+        if (skipped > 0) {
+          session.getRemote().sendString(String.format("... %d log messages skipped ...", skipped));
         }
-
-        if (session.isOpen()) {
+        for (String value : values) {
+          if (!session.isOpen()) {
+            return;
+          }
           session.getRemote().sendString(value);
-        } else {
-          return;
         }
       }
     } catch (IOException e) {
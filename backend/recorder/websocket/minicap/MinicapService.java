@@ -15,27 +15,30 @@
 package com.google.uicd.backend.recorder.websocket.minicap;
 
 import com.google.uicd.backend.core.devicesdriver.DevicesDriverManager;
+import com.google.uicd.backend.core.uicdactions.UicdExecutors;
 import com.google.uicd.backend.core.utils.ADBCommandLineUtil;
 import com.google.uicd.backend.core.utils.AdbForward;
 import com.google.uicd.backend.core.utils.UicdCoreDelegator;
 import com.google.uicd.backend.recorder.websocket.minicap.exceptions.MinicapInstallException;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 public class MinicapService {
-  public MinicapService(String deviceId, BlockingQueue<byte[]> imgQueue) {
+  public MinicapService(String deviceId, Consumer<byte[]> frameConsumer) {
     this.deviceId = deviceId;
-    this.imgQueue = imgQueue;
+    this.frameConsumer = frameConsumer;
     this.adbCommandLineUtil = new ADBCommandLineUtil();
     try {
       installMinicap(deviceId);
@@ -44,22 +47,43 @@ public class MinicapService {
     }
   }
 
+  /**
+   * Lifecycle of the minicap stream. Only {@link #start} leaves {@code STOPPED}, and only the
+   * shutdown path goes to {@code DRAINING}, so a restart never overlaps with the previous stream.
+   */
+  public enum State {
+    STARTING,
+    STREAMING,
+    DRAINING,
+    STOPPED
+  }
+
   private static final String MINICAP_BIN = "minicap";
   private static final String REMOTE_PATH = "/data/local/tmp/minicap-devel";
+  // Big enough for the banner and the frame headers, frame bodies are read in place.
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int BANNER_MIN_LENGTH = 24;
+  private static final int CONNECT_RETRY_TIMES = 50;
+  private static final Duration CONNECT_RETRY_INTERVAL = Duration.ofMillis(10);
+  private static final Duration READER_STOP_TIMEOUT = Duration.ofSeconds(3);
+  private static final Duration SHELL_STOP_TIMEOUT = Duration.ofSeconds(3);
   private static Logger logger = LogManager.getLogManager().getLogger("uicd");
+  // Resources of all the minicap services alive in this process, logged on every shutdown so a
+  // leak shows up in the log before the host runs out of threads or sockets.
+  private static final AtomicInteger liveReaderThreads = new AtomicInteger();
+  private static final AtomicInteger openChannels = new AtomicInteger();
+  private static final AtomicInteger liveShellProcesses = new AtomicInteger();
   private String deviceId;
 
-  private boolean running = false;
-  // thread to start minicap
-  private Thread minicapThread;
-  private Thread dataReaderThread;
-  private Thread imageParserThread;
+  private volatile State state = State.STOPPED;
+  // adb shell process running minicap on the device
+  private Process minicapProcess;
+  // Reader of the current stream, a reader that is not it any more stops and releases nothing.
+  private volatile Thread frameReaderThread;
   private AdbForward forward;
 
-  private BlockingQueue<byte[]> dataQueue = new LinkedBlockingQueue<>();
-  private BlockingQueue<byte[]> imgQueue;
+  private final Consumer<byte[]> frameConsumer;
   private Banner banner;
-  private Socket minicapSocket;
   private final ADBCommandLineUtil adbCommandLineUtil;
 
   private static void installMinicap(String minicapDevice) throws MinicapInstallException {
@@ -68,6 +92,10 @@ public class MinicapService {
     }
   }
 
+  public State getState() {
+    return state;
+  }
+
   /*
   Usage: /data/local/tmp/minicap [-h] [-n <name>]
     -d <id>:       Display ID. (0)
@@ -115,15 +143,21 @@ public class MinicapService {
     return forward;
   }
 
-  public void start(int ow, int oh, int dw, int dh, int rotate, boolean shipFrame, String[] args) {
+  public synchronized void start(
+      int ow, int oh, int dw, int dh, int rotate, boolean shipFrame, String[] args) {
+    if (state != State.STOPPED) {
+      logger.warning(String.format("Minicap of %s is %s, stop it first.", deviceId, state));
+      return;
+    }
+    state = State.STARTING;
     AdbForward forward = createForward();
     String command =
         getMinicapCommand(ow, oh, dw, dh, rotate, shipFrame, forward.localAbstract(), args);
     logger.info("start minicap:" + command);
-    minicapThread = startMinicapThread(command);
+    minicapProcess = startMinicapProcess(command);
 
     // consume data
-    startInitialThread("127.0.0.1", forward.port());
+    frameReaderThread = startFrameReaderThread("127.0.0.1", forward.port());
     logger.info("forward port:" + forward.port());
   }
 
@@ -139,62 +173,57 @@ public class MinicapService {
   }
 
   public void reStart(int originalWidth, int originalHeight, final float scale, final int rotate) {
-    running = false;
-    if (minicapThread != null) {
-      minicapThread.stop();
-    }
-
-    if (dataReaderThread != null) {
-      try {
-        dataReaderThread.join();
-      } catch (InterruptedException e) {
-        UicdCoreDelegator.getInstance().logException(e);
-      }
-    }
-
-    if (imageParserThread != null) {
-      try {
-        imageParserThread.join();
-      } catch (InterruptedException e) {
-        UicdCoreDelegator.getInstance().logException(e);
-      }
-    }
+    stop();
     start(originalWidth, originalHeight, scale, rotate);
   }
 
   public void kill() {
-    onClose();
-
-    running = false;
-    if (minicapThread != null) {
-      minicapThread.stop();
-    }
+    stop();
+  }
 
-    // close socket
-    if (minicapSocket != null && minicapSocket.isConnected()) {
-      try {
-        minicapSocket.close();
-      } catch (IOException e) {
-        UicdCoreDelegator.getInstance().logException(e);
+  /**
+   * Stops the stream and releases the reader thread, the socket channel, the shell process and the
+   * adb forward. Returns within a bounded time even if the device does not respond.
+   */
+  public void stop() {
+    Thread reader;
+    synchronized (this) {
+      if (state == State.STOPPED || state == State.DRAINING) {
+        return;
       }
-      minicapSocket = null;
+      state = State.DRAINING;
+      reader = frameReaderThread;
     }
-
-    if (dataReaderThread != null) {
+    if (reader != null) {
+      // The reader blocks on an interruptible channel, interrupting it closes the channel.
+      reader.interrupt();
       try {
-        dataReaderThread.join();
+        reader.join(READER_STOP_TIMEOUT.toMillis());
       } catch (InterruptedException e) {
-        UicdCoreDelegator.getInstance().logException(e);
+        Thread.currentThread().interrupt();
+      }
+      if (reader.isAlive()) {
+        logger.warning(
+            String.format(
+                "Minicap reader of %s did not stop within %s.", deviceId, READER_STOP_TIMEOUT));
       }
     }
+    releaseResources();
+  }
 
-    if (imageParserThread != null) {
-      try {
-        imageParserThread.join();
-      } catch (InterruptedException e) {
-        UicdCoreDelegator.getInstance().logException(e);
-      }
+  /** Releases everything owned by the current stream, safe to call more than once. */
+  private synchronized void releaseResources() {
+    if (state == State.STOPPED) {
+      return;
     }
+    stopMinicapProcess();
+    removeForward();
+    frameReaderThread = null;
+    state = State.STOPPED;
+    logger.info(
+        String.format(
+            "Minicap of %s stopped. Live readers: %d, open channels: %d, live shells: %d",
+            deviceId, liveReaderThreads.get(), openChannels.get(), liveShellProcesses.get()));
   }
 
   private void removeForward() {
@@ -210,67 +239,44 @@ public class MinicapService {
     }
   }
 
-  /**
-   * start minicap thread
-   *
-   * @return Thread
-   */
-  private Thread startMinicapThread(final String shellCommand) {
-    Thread thread =
-        new Thread(
-            () -> {
-              try {
-                adbCommandLineUtil.executeAdb(
-                    "adb shell " + shellCommand, deviceId, false /* waitFor*/);
-              } catch (Exception e) {
-                UicdCoreDelegator.getInstance().logException(e);
-              }
-            });
-
-    thread.start();
-    return thread;
+  private Process startMinicapProcess(final String shellCommand) {
+    try {
+      Process process =
+          adbCommandLineUtil.executeAdb("adb shell " + shellCommand, deviceId, false /* waitFor*/);
+      liveShellProcesses.incrementAndGet();
+      return process;
+    } catch (Exception e) {
+      UicdCoreDelegator.getInstance().logException(e);
+      return null;
+    }
   }
 
-  private Thread startInitialThread(final String host, final int port) {
-    Thread thread =
-        new Thread(
-            () -> {
-              try {
-                byte[] bytes = null;
-                int tryTime = 50;
-                while (true) {
-                  // connect to minicap service
-                  minicapSocket = new Socket(host, port);
-                  InputStream inputStream = minicapSocket.getInputStream();
-                  // do we want to new everytime?
-                  bytes = new byte[4096];
-                  int n = inputStream.read(bytes);
-
-                  if (n == -1) {
-                    Thread.sleep(10);
-                    minicapSocket.close();
-                  } else {
-                    // send bytes Dataparser
-                    dataQueue.add(Arrays.copyOfRange(bytes, 0, n));
-                    running = true;
-
-                    // start DataReader  ImageParser
-                    dataReaderThread = startDataReaderThread(minicapSocket);
-                    imageParserThread = startImageParserThread();
-                    break;
-                  }
-
-                  tryTime--;
-                  if (tryTime == 0) {
-                    break;
-                  }
-                }
-              } catch (Exception e) {
-                UicdCoreDelegator.getInstance().logException(e);
-              }
-            });
-    thread.start();
-    return thread;
+  /**
+   * Kills minicap on the device first, so the adb shell exits by itself, and only destroys the
+   * local process if it is still there after the timeout.
+   */
+  private void stopMinicapProcess() {
+    if (minicapProcess == null) {
+      return;
+    }
+    if (forward != null) {
+      try {
+        adbCommandLineUtil.executeAdb(
+            String.format("adb shell pkill -f %s", forward.localAbstract()), deviceId);
+      } catch (Exception e) {
+        logger.warning("Failed to kill minicap on device: " + e.getMessage());
+      }
+    }
+    try {
+      if (!minicapProcess.waitFor(SHELL_STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+        minicapProcess.destroyForcibly();
+      }
+    } catch (InterruptedException e) {
+      minicapProcess.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+    liveShellProcesses.decrementAndGet();
+    minicapProcess = null;
   }
 
   /** Generate forward info */
@@ -303,223 +309,183 @@ public class MinicapService {
     return AdbForward.create(deviceId, freePort, forwardStr);
   }
 
-  private Thread startDataReaderThread(Socket minicapSocket) {
-    Thread thread = new Thread(new DataReader(minicapSocket));
-    thread.start();
-    return thread;
+  private Thread startFrameReaderThread(String host, int port) {
+    return UicdExecutors.startThread("minicap-reader-" + deviceId, new FrameReader(host, port));
   }
 
-  private Thread startImageParserThread() {
-    Thread thread = new Thread(new ImageParser());
-    thread.start();
-    return thread;
-  }
-
-  private void onClose() {
-    removeForward();
+  /**
+   * Called by the reader when the stream ends without being asked to. A reader that outlived its
+   * stream does nothing, the process and the forward belong to the stream started after it.
+   */
+  private synchronized void onStreamLost(Thread reader) {
+    if (frameReaderThread != reader || state == State.DRAINING) {
+      return;
+    }
+    releaseResources();
   }
 
-  private class DataReader implements Runnable {
+  /**
+   * Reads the minicap stream from a single socket channel.
+   *
+   * <p>The banner and the frame headers are parsed in place from one reusable direct buffer. Each
+   * frame body is copied exactly once, into an array of the frame size, which is then handed to the
+   * frame consumer. The array can not be pooled, since the websocket sessions keep it until the
+   * image is sent.
+   *
+   * <p>Minicap protocol: a banner starting with version(1 byte) and banner length(1 byte), then
+   * frames, each one is a 4 bytes little endian length followed by the jpeg body.
+   */
+  private class FrameReader implements Runnable {
+    private final String host;
+    private final int port;
+    private final ByteBuffer readBuffer =
+        ByteBuffer.allocateDirect(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    FrameReader(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
 
-    DataReader(Socket minicapSocket) {
-      this.socket = minicapSocket;
+    @Override
+    public void run() {
+      liveReaderThreads.incrementAndGet();
+      SocketChannel channel = null;
       try {
-        this.inputStream = minicapSocket.getInputStream();
+        channel = connect();
+        if (channel == null) {
+          logger.warning("Can not connect to minicap on port: " + port);
+          return;
+        }
+        banner = readBanner(channel);
+        logger.info(banner.toString());
+        while (state == State.STREAMING && frameReaderThread == Thread.currentThread()) {
+          byte[] frame = readFrame(channel);
+          if (frame == null) {
+            logger.warning("minicap stream closed on port: " + port);
+            return;
+          }
+          if (frame.length < 2 || frame[0] != (byte) 0xFF || frame[1] != (byte) 0xD8) {
+            logger.warning("Frame body does not start with JPG header");
+            continue;
+          }
+          frameConsumer.accept(frame);
+        }
+      } catch (ClosedByInterruptException e) {
+        // Asked to stop.
       } catch (IOException e) {
-        UicdCoreDelegator.getInstance().logException(e);
-        onClose();
+        logger.warning("minicap lost connection: " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        closeChannel(channel);
+        liveReaderThreads.decrementAndGet();
+        onStreamLost(Thread.currentThread());
       }
     }
 
-    static final int BUFF_SIZ = 4096;
-    Socket socket = null;
-    InputStream inputStream = null;
-    long ts = 0;
-
-    @Override
-    public void run() {
+    private void closeChannel(SocketChannel channel) {
+      if (channel == null) {
+        return;
+      }
       try {
-        readData();
+        channel.close();
       } catch (IOException e) {
-        logger.warning("minicap lost connection: " + e.getMessage());
-        onClose();
+        logger.warning("Failed to close minicap channel: " + e.getMessage());
       }
+      openChannels.decrementAndGet();
     }
 
-    public void readData() throws IOException {
-      DataInputStream stream = new DataInputStream(inputStream);
-      while (running) {
-        byte[] buffer = new byte[BUFF_SIZ];
-        ts = System.currentTimeMillis();
-        int len = stream.read(buffer);
-        if (len == -1) {
-          return;
+    /**
+     * Connects to the forwarded minicap socket. The adb forward accepts the connection even if
+     * minicap is not ready yet, in that case the channel is closed right away, so retry until the
+     * first bytes arrive.
+     */
+    private SocketChannel connect() throws IOException, InterruptedException {
+      for (int i = 0; i < CONNECT_RETRY_TIMES && state == State.STARTING; i++) {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        openChannels.incrementAndGet();
+        readBuffer.clear();
+        int n;
+        try {
+          n = channel.read(readBuffer);
+        } catch (IOException e) {
+          closeChannel(channel);
+          throw e;
         }
-        if (len == BUFF_SIZ) {
-          dataQueue.add(buffer);
-        } else {
-          dataQueue.add(subArray(buffer, 0, len));
+        if (n == -1) {
+          closeChannel(channel);
+          Thread.sleep(CONNECT_RETRY_INTERVAL.toMillis());
+          continue;
+        }
+        readBuffer.flip();
+        synchronized (MinicapService.this) {
+          if (state != State.STARTING || frameReaderThread != Thread.currentThread()) {
+            closeChannel(channel);
+            return null;
+          }
+          state = State.STREAMING;
         }
+        return channel;
       }
+      return null;
     }
-  }
-
-  private class ImageParser implements Runnable {
-
-    int readn = 0; // read size
-    int bannerLen = 2; // banner info size
-    int readFrameBytes = 0;
-    int frameBodyLength = 0;
-    byte[] frameBody = new byte[0];
-    long t = 0;
-    ////// banner
-    int pid = 0;
-    int realWidth = 0;
-    int realHeight = 0;
-    int virtualWidth = 0;
-    int virtualHeight = 0;
-    int orientation = 0;
-    int quirks = 0;
 
-    @Override
-    public void run() {
-      while (running) {
-        try {
-          banner = new Banner();
-          readData();
-        } catch (InterruptedException e) {
-          System.out.println(e.getMessage());
-          onClose();
+    /** Makes sure the read buffer has at least {@code size} bytes, returns false on EOF. */
+    private boolean fill(SocketChannel channel, int size) throws IOException {
+      while (readBuffer.remaining() < size) {
+        readBuffer.compact();
+        int n = channel.read(readBuffer);
+        readBuffer.flip();
+        if (n == -1) {
+          return false;
         }
       }
+      return true;
     }
 
-    void readData() throws InterruptedException {
-      byte[] buffer = dataQueue.poll(5000, TimeUnit.MILLISECONDS);
-      if (buffer == null) {
-        return;
+    private Banner readBanner(SocketChannel channel) throws IOException {
+      Banner minicapBanner = new Banner();
+      if (!fill(channel, 2)) {
+        throw new IOException("Stream closed before banner");
       }
-      int length = buffer.length;
-      for (int cursor = 0; cursor < length; ) {
-        int ch = buffer[cursor] & 0xff;
-        if (readn < bannerLen) {
-          cursor = parserBanner(cursor, ch);
-        } else if (readFrameBytes < 4) { // frame length
-          frameBodyLength += (ch << (readFrameBytes * 8));
-          cursor += 1;
-          readFrameBytes += 1;
-          if (readFrameBytes == 4) {
-            t = System.currentTimeMillis();
-          }
-        } else {
-          if (length - cursor >= frameBodyLength) {
-            byte[] subByte = Arrays.copyOfRange(buffer, cursor, cursor + frameBodyLength);
-            frameBody = mergeArray(frameBody, subByte);
-            if ((frameBody[0] != -1) || frameBody[1] != -40) {
-              System.out.println("Frame body does not start with JPG header");
-              return;
-            }
-            byte[] finalBytes = Arrays.copyOfRange(frameBody, 0, frameBody.length);
-
-            cursor += frameBodyLength;
-            frameBodyLength = 0;
-            readFrameBytes = 0;
-            frameBody = new byte[0];
-            imgQueue.add(finalBytes);
-          } else {
-            byte[] subByte = Arrays.copyOfRange(buffer, cursor, length);
-            frameBody = mergeArray(frameBody, subByte);
-            frameBodyLength -= (length - cursor);
-            readFrameBytes += (length - cursor);
-            cursor = length;
-          }
-        }
+      minicapBanner.setVersion(readBuffer.get() & 0xff);
+      int bannerLength = readBuffer.get() & 0xff;
+      minicapBanner.setLength(bannerLength);
+      if (bannerLength < BANNER_MIN_LENGTH || !fill(channel, bannerLength - 2)) {
+        throw new IOException("Invalid banner, length: " + bannerLength);
       }
+      minicapBanner.setPid(readBuffer.getInt());
+      minicapBanner.setReadWidth(readBuffer.getInt());
+      minicapBanner.setReadHeight(readBuffer.getInt());
+      minicapBanner.setVirtualWidth(readBuffer.getInt());
+      minicapBanner.setVirtualHeight(readBuffer.getInt());
+      minicapBanner.setOrientation((readBuffer.get() & 0xff) * 90);
+      minicapBanner.setQuirks(readBuffer.get() & 0xff);
+      // Skip the fields added by newer versions of minicap.
+      readBuffer.position(readBuffer.position() + bannerLength - BANNER_MIN_LENGTH);
+      return minicapBanner;
     }
 
-    int parserBanner(int cursor, int ch) {
-      switch (cursor) {
-        case 0:
-          banner.setVersion(ch);
-          break;
-        case 1:
-          bannerLen = ch;
-          banner.setLength(bannerLen);
-          break;
-        case 2:
-        case 3:
-        case 4:
-        case 5:
-          {
-            pid += (ch << ((readn - 2) * 8));
-            if (cursor == 5) {
-              banner.setPid(pid);
-            }
-            break;
-          }
-        case 6:
-        case 7:
-        case 8:
-        case 9:
-          {
-            realWidth += (ch << ((readn - 6) * 8));
-            if (cursor == 9) {
-              banner.setReadWidth(realWidth);
-            }
-            break;
-          }
-
-        case 10:
-        case 11:
-        case 12:
-        case 13:
-          realHeight += (ch << ((readn - 10) * 8));
-          if (cursor == 13) {
-            banner.setReadHeight(realHeight);
-          }
-          break;
-        case 14:
-        case 15:
-        case 16:
-        case 17:
-          virtualWidth += (ch << ((readn - 14) * 8));
-          if (cursor == 17) {
-            banner.setVirtualWidth(virtualWidth);
-          }
-          break;
-        case 18:
-        case 19:
-        case 20:
-        case 21:
-          virtualHeight += (ch << ((readn - 18) * 8));
-          if (cursor == 21) {
-            banner.setVirtualHeight(virtualHeight);
-          }
-          break;
-        case 22:
-          orientation = ch * 90;
-          banner.setOrientation(orientation);
-          break;
-        case 23:
-          quirks = ch;
-          banner.setQuirks(quirks);
-          break;
+    /** Reads the next frame, returns null on EOF. */
+    private byte[] readFrame(SocketChannel channel) throws IOException {
+      if (!fill(channel, Integer.BYTES)) {
+        return null;
+      }
+      int frameLength = readBuffer.getInt();
+      if (frameLength < 0) {
+        throw new IOException("Invalid frame length: " + frameLength);
       }
-      ++readn;
-      ++cursor;
-      return cursor;
+      byte[] frame = new byte[frameLength];
+      int buffered = Math.min(readBuffer.remaining(), frameLength);
+      readBuffer.get(frame, 0, buffered);
+      // Read the rest of the body straight into the frame.
+      ByteBuffer frameBuffer = ByteBuffer.wrap(frame, buffered, frameLength - buffered);
+      while (frameBuffer.hasRemaining()) {
+        if (channel.read(frameBuffer) == -1) {
+          return null;
+        }
+      }
+      return frame;
     }
   }
-
-  private static byte[] subArray(byte[] byte1, int start, int end) {
-    byte[] byte2 = new byte[end - start];
-    System.arraycopy(byte1, start, byte2, 0, end - start);
-    return byte2;
-  }
-
-  private static byte[] mergeArray(byte[] a1, byte[] a2) {
-    byte[] arr = Arrays.copyOf(a1, a1.length + a2.length);
-    System.arraycopy(a2, 0, arr, a1.length, a2.length);
-    return arr;
-  }
 }
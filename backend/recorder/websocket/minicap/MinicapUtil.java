@@ -23,7 +23,6 @@ import com.google.uicd.backend.core.devicesdriver.DeviceDimension;
 import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
 import com.google.uicd.backend.core.utils.ADBCommandLineUtil;
 import com.google.uicd.backend.core.utils.CommandLineUtil;
-import com.google.uicd.backend.recorder.websocket.minicap.jetty.MinicapJettyServer;
 import com.google.uicd.backend.recorder.websocket.minicap.jetty.MinicapServerManager;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -31,23 +30,19 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
 public class MinicapUtil {
   private static Logger logger = LogManager.getLogManager().getLogger("uicd");
   public static HashMap<AndroidDeviceDriver, MinicapService> deviceMinicapMapping = new HashMap<>();
-  public static HashMap<AndroidDeviceDriver, MinicapJettyServer> deviceMinicapServerMapping =
-      new HashMap<>();
   // The path to minicap on the device. It has to be linux format, don't use paths.get().
   private static final String MINICAP_TMP_DIR_ON_DEVICE = "/data/local/tmp/minicap-devel";
 
   public static String restartMinicap(String deviceId, int rotate) {
     String ret = "";
     Optional<AndroidDeviceDriver> androidDeviceDriver =
-        deviceMinicapServerMapping.keySet().stream()
+        deviceMinicapMapping.keySet().stream()
             .filter(p -> p.getDeviceId().equals(deviceId))
             .findFirst();
     if (!androidDeviceDriver.isPresent()) {
@@ -160,13 +155,7 @@ public class MinicapUtil {
     pushMinicapFiles(androidDeviceDriver.getDevice());
     grantMinicapPermission(androidDeviceDriver.getDevice());
 
-    MinicapJettyServer minicapServer = deviceMinicapServerMapping.get(androidDeviceDriver);
-
-    if (minicapServer == null) {
-      minicapServer = MinicapServerManager.getInstance().createNewServer(serverPort, deviceId);
-      deviceMinicapServerMapping.put(androidDeviceDriver, minicapServer);
-      MinicapServerManager.getInstance().runServer(minicapServer);
-    }
+    MinicapServerManager.getInstance().startServer();
     // Get the new rotated dimensions
     int originalWidth = androidDeviceDriver.getDevice().getWidth();
     int originalHeight = androidDeviceDriver.getDevice().getHeight();
@@ -174,13 +163,13 @@ public class MinicapUtil {
       MinicapService minicapService = deviceMinicapMapping.get(androidDeviceDriver);
       minicapService.reStart(originalWidth, originalHeight, displayDimension.scale(), rotate);
     } else {
-      BlockingQueue<byte[]> imgdataQueue = new LinkedBlockingQueue<byte[]>();
-      Integer port = minicapServer.getPort();
-      MinicapService minicapService = new MinicapService(deviceId, imgdataQueue);
+      // The hub is looked up on every frame, clearAll replaces the hubs but keeps the services.
+      MinicapServerManager serverManager = MinicapServerManager.getInstance();
+      MinicapService minicapService =
+          new MinicapService(
+              deviceId, frame -> serverManager.getOrCreateHub(deviceId).publish(frame));
       minicapService.reStart(originalWidth, originalHeight, displayDimension.scale(), rotate);
       deviceMinicapMapping.put(androidDeviceDriver, minicapService);
-      MinicapServerManager.portQueueMapping.put(port, imgdataQueue);
-      MinicapServerManager.getInstance().sendImage(minicapServer);
     }
 
     androidDeviceDriver.isMinicapStarted = true;
@@ -218,8 +207,7 @@ public class MinicapUtil {
   }
 
   public static void deviceCallbackOperation(AndroidDeviceDriver driver) {
-    MinicapServerManager.getInstance()
-        .stopMinicapOnPort(driver.getDeviceId(), driver.getDevice().getMinicapWebServerPort());
+    MinicapServerManager.getInstance().stopMinicap(driver.getDeviceId());
     MinicapUtil.startMinicap(driver, 0);
   }
 }
@@ -17,30 +17,38 @@ package com.google.uicd.backend.recorder.websocket.minicap.jetty;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.websocket.server.WebSocketHandler;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 
-/** Minicap Server based on Jetty */
+/**
+ * Minicap Server based on Jetty. One server streams all the devices, the websocket path
+ * /minicap/{deviceId} selects the device, so the threads and the selector are shared.
+ */
 public class MinicapJettyServer {
   private static Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final int MAX_THREADS = 32;
+  private static final int MIN_THREADS = 4;
+  private static final int ACCEPTORS = 1;
+  private static final int SELECTORS = 2;
   private Server server = null;
   private int port = 0;
-  private String deviceId;
 
-  MinicapJettyServer(int port, String deviceId) {
+  MinicapJettyServer(int port) {
     this.port = port;
-    this.deviceId = deviceId;
-    server = new Server(port);
+    QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS, MIN_THREADS);
+    threadPool.setName("minicap-server");
+    server = new Server(threadPool);
+    ServerConnector connector = new ServerConnector(server, ACCEPTORS, SELECTORS);
+    connector.setPort(port);
+    server.addConnector(connector);
   }
 
   public int getPort() {
     return port;
   }
 
-  public String getDeviceId() {
-    return deviceId;
-  }
-
   public Server getServer() {
     return server;
   }
@@ -14,148 +14,106 @@
 
 package com.google.uicd.backend.recorder.websocket.minicap.jetty;
 
+import com.google.uicd.backend.core.config.UicdConfig;
 import com.google.uicd.backend.core.exceptions.UicdExternalCommandException;
+import com.google.uicd.backend.core.uicdactions.UicdExecutors;
 import com.google.uicd.backend.core.utils.ADBCommandLineUtil;
-import io.netty.util.internal.ConcurrentSet;
-import java.nio.ByteBuffer;
-import java.time.Duration;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import org.eclipse.jetty.websocket.api.Session;
-
-/** MinicapServerManager */
+import org.eclipse.jetty.websocket.api.StatusCode;
+
+/**
+ * MinicapServerManager
+ *
+ * <p>Owns the single minicap websocket server and the stream hub of each device. Sessions connect
+ * to ws://host:port/minicap/{deviceId}.
+ */
 public class MinicapServerManager {
 
-  public static HashMap<Integer, BlockingQueue<byte[]>> portQueueMapping = new HashMap<>();
-  public static HashMap<Integer, ConcurrentSet<Session>> portSessionMapping = new HashMap<>();
-  public static HashMap<Integer, Thread> portSendImgThreadMapping = new HashMap<>();
-  private static List<MinicapJettyServer> serverList = new ArrayList<>();
+  private static final String MINICAP_PATH_PREFIX = "/minicap/";
   private static MinicapServerManager instance = null;
   private static Logger logger = LogManager.getLogManager().getLogger("uicd");
-  private static final Duration IMG_POLL_TIMEOUT = Duration.ofSeconds(3);
-  private static final Duration WAIT_FOR_IMG_QUEUE = Duration.ofSeconds(1);
+  private final Map<String, MinicapStreamHub> deviceHubMapping = new ConcurrentHashMap<>();
   private final ADBCommandLineUtil adbCommandLineUtil;
+  private MinicapJettyServer server = null;
 
   protected MinicapServerManager() {
     this.adbCommandLineUtil = new ADBCommandLineUtil();
   }
 
-  public static MinicapServerManager getInstance() {
+  public static synchronized MinicapServerManager getInstance() {
     if (instance == null) {
       instance = new MinicapServerManager();
     }
     return instance;
   }
 
-  public MinicapJettyServer createNewServer(int port, String deviceId) {
-    MinicapJettyServer minicapJettyServer = new MinicapJettyServer(port, deviceId);
-    serverList.add(minicapJettyServer);
-    return minicapJettyServer;
+  /** Starts the shared minicap server, does nothing if it is already running on the port. */
+  public synchronized void startServer() {
+    int port = UicdConfig.getInstance().getMinicapWebServerPort();
+    if (server != null && server.getPort() == port) {
+      return;
+    }
+    if (server != null) {
+      server.stopServer();
+    }
+    MinicapJettyServer minicapJettyServer = new MinicapJettyServer(port);
+    UicdExecutors.startThread("minicap-server-" + port, minicapJettyServer::runServer);
+    server = minicapJettyServer;
   }
 
-  public void runServer(MinicapJettyServer server) {
-    new Thread() {
-      @Override
-      public void run() {
-        server.runServer();
-      }
-    }.start();
+  /** Gets the stream hub of the device, frames published to it go to all of its sessions. */
+  public MinicapStreamHub getOrCreateHub(String deviceId) {
+    return deviceHubMapping.computeIfAbsent(deviceId, MinicapStreamHub::new);
   }
 
-  public void stopServer(MinicapJettyServer server) {
-    server.stopServer();
+  /** Gets the stream metrics of all the devices. */
+  public List<MinicapStreamMetrics> getMetrics() {
+    return deviceHubMapping.values().stream()
+        .map(MinicapStreamHub::getMetrics)
+        .collect(Collectors.toList());
   }
 
-  public void sendImage(MinicapJettyServer server) {
-    Integer port = server.getPort();
-    BlockingQueue<byte[]> imgdataQueue = portQueueMapping.get(port);
-    Thread sendImgThread =
-        new Thread() {
-          @Override
-          public void run() {
-            byte[] buffer = {};
-            while (!isInterrupted()) {
-              try {
-                byte[] candidate = {};
-
-                if (imgdataQueue != null) {
-                  byte[] currentImg =
-                      imgdataQueue.poll(IMG_POLL_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
-                  if (currentImg == null) {
-                    candidate = buffer.clone();
-                  } else {
-                    candidate = currentImg;
-                    buffer = candidate.clone();
-                  }
-                } else {
-                  Thread.sleep(WAIT_FOR_IMG_QUEUE.toMillis());
-                  continue;
-                }
-
-                // not ready
-                if (port == null) {
-                  return;
-                }
-
-                // Send the new img to all open WebSocket sessions
-                ConcurrentSet<Session> sessions = portSessionMapping.get(port);
-
-                if (sessions == null) {
-                  continue;
-                }
-
-                for (Session session : sessions) {
-                  if (!session.isOpen()) {
-                    portSessionMapping.get(port).remove(session);
-                  } else {
-                    session.getRemote().sendBytes(ByteBuffer.wrap(candidate));
-                  }
-                }
-              } catch (Throwable e) {
-                // Let the owning Thread know it's been interrupted, so it can clean up
-                interrupt();
-                logger.info("No data from minicap.");
-              }
-            }
-
-            logger.info(String.format("Thread id(%s) killed.", this.getId()));
-          }
-        };
-    sendImgThread.start();
-    portSendImgThreadMapping.put(port, sendImgThread);
+  void addSession(Session session) {
+    String path = session.getUpgradeRequest().getRequestURI().getPath();
+    if (path == null || !path.startsWith(MINICAP_PATH_PREFIX)) {
+      logger.warning("Unknown minicap stream: " + path);
+      session.close(StatusCode.POLICY_VIOLATION, "Unknown minicap stream");
+      return;
+    }
+    getOrCreateHub(path.substring(MINICAP_PATH_PREFIX.length())).addSession(session);
   }
 
-  public void stopMinicapOnPort(String deivceId, int minicapWebServerPort) {
-    portSendImgThreadMapping.get(minicapWebServerPort).interrupt();
-    portSendImgThreadMapping.remove(minicapWebServerPort);
-
-    Optional<MinicapJettyServer> minicapJettyServer =
-        serverList.stream().filter(s -> s.getPort() == minicapWebServerPort).findFirst();
-    if (minicapJettyServer.isPresent()) {
-      stopServer(minicapJettyServer.get());
-      // Stop minicap on the device
-      killMinicap(deivceId);
+  void removeSession(Session session) {
+    for (MinicapStreamHub hub : deviceHubMapping.values()) {
+      hub.removeSession(session);
     }
   }
 
-  public void clearAll() {
-    for (Map.Entry<Integer, Thread> entry : portSendImgThreadMapping.entrySet()) {
-      entry.getValue().interrupt();
-    }
+  /** Stops minicap on the device, the sessions are kept and get the frames after the restart. */
+  public void stopMinicap(String deviceId) {
+    killMinicap(deviceId);
+  }
 
-    for (MinicapJettyServer server : serverList) {
-      stopServer(server);
-      killMinicap(server.getDeviceId());
+  /**
+   * Closes all the hubs and stops minicap. The minicap services look up their hub on every frame,
+   * so after a restart they publish to the hub the new sessions attach to.
+   */
+  public void clearAll() {
+    // Hubs created meanwhile by a frame or a session are either closed here or kept in the map.
+    Iterator<MinicapStreamHub> hubs = deviceHubMapping.values().iterator();
+    while (hubs.hasNext()) {
+      MinicapStreamHub hub = hubs.next();
+      hubs.remove();
+      hub.close();
+      killMinicap(hub.getDeviceId());
     }
-    portQueueMapping.clear();
-    portSessionMapping.clear();
   }
 
   private void killMinicap(String deviceId) {
@@ -0,0 +1,130 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.recorder.websocket.minicap.jetty;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+/**
+ * Sends minicap frames to one websocket session.
+ *
+ * <p>The session has a single outbound slot, a new frame replaces the one that is still waiting,
+ * so a slow browser only drops frames for itself instead of stalling the other viewers, and the
+ * memory used per session stays at one frame. Sends are asynchronous, the next frame goes out when
+ * the previous write completes.
+ */
+public class MinicapSessionSender implements WriteCallback {
+  private static Logger logger = LogManager.getLogManager().getLogger("uicd");
+
+  private final Session session;
+  private final MinicapStreamMetrics metrics;
+  private final AtomicReference<PendingFrame> pendingFrame = new AtomicReference<>();
+  private final AtomicBoolean sending = new AtomicBoolean(false);
+  private final AtomicLong sentFrames = new AtomicLong();
+  private final AtomicLong droppedFrames = new AtomicLong();
+  // Only one frame is in flight at a time.
+  private volatile long inFlightReceivedNanos;
+
+  MinicapSessionSender(Session session, MinicapStreamMetrics metrics) {
+    this.session = session;
+    this.metrics = metrics;
+  }
+
+  public Session getSession() {
+    return session;
+  }
+
+  public long getSentFrames() {
+    return sentFrames.get();
+  }
+
+  public long getDroppedFrames() {
+    return droppedFrames.get();
+  }
+
+  /** Returns whether a frame is waiting for the previous write to complete. */
+  public boolean hasPendingFrame() {
+    return pendingFrame.get() != null;
+  }
+
+  /**
+   * Queues the frame for sending, replacing the frame not sent yet. Never blocks.
+   *
+   * @param frame the jpeg frame
+   * @param receivedNanos {@link System#nanoTime()} when the frame was read from minicap
+   */
+  public void offer(byte[] frame, long receivedNanos) {
+    if (pendingFrame.getAndSet(new PendingFrame(frame, receivedNanos)) != null) {
+      droppedFrames.incrementAndGet();
+    }
+    trySend();
+  }
+
+  private void trySend() {
+    while (pendingFrame.get() != null && sending.compareAndSet(false, true)) {
+      PendingFrame frame = pendingFrame.getAndSet(null);
+      if (frame == null) {
+        // Taken by the callback thread in the meantime.
+        sending.set(false);
+        continue;
+      }
+      if (!session.isOpen()) {
+        sending.set(false);
+        return;
+      }
+      inFlightReceivedNanos = frame.receivedNanos;
+      try {
+        session.getRemote().sendBytes(ByteBuffer.wrap(frame.data), this);
+      } catch (RuntimeException e) {
+        // The session is closed in the middle.
+        writeFailed(e);
+      }
+      return;
+    }
+  }
+
+  @Override
+  public void writeSuccess() {
+    sentFrames.incrementAndGet();
+    metrics.onFrameSent(System.nanoTime() - inFlightReceivedNanos);
+    sending.set(false);
+    trySend();
+  }
+
+  @Override
+  public void writeFailed(Throwable x) {
+    droppedFrames.incrementAndGet();
+    sending.set(false);
+    logger.info("Failed to send minicap frame: " + x.getMessage());
+    // A frame may have been parked while this one was in flight.
+    trySend();
+  }
+
+  private static class PendingFrame {
+    final byte[] data;
+    final long receivedNanos;
+
+    PendingFrame(byte[] data, long receivedNanos) {
+      this.data = data;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+}
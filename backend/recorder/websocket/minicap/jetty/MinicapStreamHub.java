@@ -0,0 +1,96 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.recorder.websocket.minicap.jetty;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Fans out the minicap frames of one device to all of its websocket sessions.
+ *
+ * <p>Frames are published by the minicap reader thread. Each session has its own non-blocking
+ * sender, so publishing never waits for the network.
+ */
+public class MinicapStreamHub {
+  private static Logger logger = LogManager.getLogManager().getLogger("uicd");
+
+  private final String deviceId;
+  private final ConcurrentMap<Session, MinicapSessionSender> sessions = new ConcurrentHashMap<>();
+  private final MinicapStreamMetrics metrics;
+  // Sent to the new sessions right away, minicap only sends frames when the screen changes.
+  private volatile byte[] lastFrame;
+
+  MinicapStreamHub(String deviceId) {
+    this.deviceId = deviceId;
+    this.metrics = new MinicapStreamMetrics(deviceId, sessions::values);
+    this.metrics.register();
+  }
+
+  public String getDeviceId() {
+    return deviceId;
+  }
+
+  public MinicapStreamMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Sends the frame to all the open sessions of the device. */
+  public void publish(byte[] frame) {
+    long receivedNanos = System.nanoTime();
+    metrics.onFrameReceived(frame.length);
+    lastFrame = frame;
+    for (MinicapSessionSender sender : sessions.values()) {
+      if (!sender.getSession().isOpen()) {
+        removeSession(sender.getSession());
+      } else {
+        sender.offer(frame, receivedNanos);
+      }
+    }
+  }
+
+  void addSession(Session session) {
+    MinicapSessionSender sender = new MinicapSessionSender(session, metrics);
+    sessions.put(session, sender);
+    byte[] frame = lastFrame;
+    if (frame != null) {
+      sender.offer(frame, System.nanoTime());
+    }
+    logger.info(String.format("New minicap session opened for %s", deviceId));
+  }
+
+  void removeSession(Session session) {
+    MinicapSessionSender sender = sessions.remove(session);
+    if (sender != null) {
+      metrics.onSessionClosed(sender);
+      logger.info(
+          String.format(
+              "Minicap session of %s closed, frames sent: %d, dropped: %d",
+              deviceId, sender.getSentFrames(), sender.getDroppedFrames()));
+    }
+  }
+
+  /** Closes all the sessions of the device. */
+  void close() {
+    for (Session session : sessions.keySet()) {
+      session.close();
+    }
+    sessions.clear();
+    lastFrame = null;
+    metrics.unregister();
+  }
+}
@@ -0,0 +1,237 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.recorder.websocket.minicap.jetty;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.LogManager;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Health and throughput of the minicap stream of one device.
+ *
+ * <p>The received side is updated when a frame is read from minicap, the sent side when a write
+ * to a websocket session completes, so a slow device and a slow fan-out can be told apart. The
+ * rates are the counts of the last complete second.
+ */
+public class MinicapStreamMetrics implements MinicapStreamMetricsMBean {
+  private static Logger logger = LogManager.getLogManager().getLogger("uicd");
+  private static final String JMX_NAME_FORMAT = "com.google.uicd:type=MinicapStream,device=%s";
+
+  private final String deviceId;
+  private final Supplier<Collection<MinicapSessionSender>> sessionsSupplier;
+  private long framesReceived;
+  private long bytesReceived;
+  private long currentSecond;
+  private long framesInCurrentSecond;
+  private long bytesInCurrentSecond;
+  private long framesInLastSecond;
+  private long bytesInLastSecond;
+  // Frames sent and dropped by the sessions which are already closed.
+  private final AtomicLong closedSessionsFramesSent = new AtomicLong();
+  private final AtomicLong closedSessionsFramesDropped = new AtomicLong();
+  private final AtomicLong sendLatencyTotalNanos = new AtomicLong();
+  private final AtomicLong sendLatencyMaxNanos = new AtomicLong();
+  private final AtomicLong sendLatencyCount = new AtomicLong();
+  private ObjectName objectName;
+
+  MinicapStreamMetrics(
+      String deviceId, Supplier<Collection<MinicapSessionSender>> sessionsSupplier) {
+    this.deviceId = deviceId;
+    this.sessionsSupplier = sessionsSupplier;
+  }
+
+  synchronized void onFrameReceived(int frameSize) {
+    rollTo(currentTimeSeconds());
+    framesReceived++;
+    bytesReceived += frameSize;
+    framesInCurrentSecond++;
+    bytesInCurrentSecond += frameSize;
+  }
+
+  void onFrameSent(long latencyNanos) {
+    sendLatencyTotalNanos.addAndGet(latencyNanos);
+    sendLatencyCount.incrementAndGet();
+    sendLatencyMaxNanos.accumulateAndGet(latencyNanos, Math::max);
+  }
+
+  void onSessionClosed(MinicapSessionSender sender) {
+    closedSessionsFramesSent.addAndGet(sender.getSentFrames());
+    closedSessionsFramesDropped.addAndGet(sender.getDroppedFrames());
+  }
+
+  private static long currentTimeSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+  }
+
+  private void rollTo(long second) {
+    if (second == currentSecond) {
+      return;
+    }
+    boolean isNextSecond = second == currentSecond + 1;
+    framesInLastSecond = isNextSecond ? framesInCurrentSecond : 0;
+    bytesInLastSecond = isNextSecond ? bytesInCurrentSecond : 0;
+    framesInCurrentSecond = 0;
+    bytesInCurrentSecond = 0;
+    currentSecond = second;
+  }
+
+  /** Registers the metrics to the platform MBean server. */
+  synchronized void register() {
+    try {
+      objectName = new ObjectName(String.format(JMX_NAME_FORMAT, ObjectName.quote(deviceId)));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    } catch (JMException e) {
+      logger.warning("Failed to register minicap metrics of " + deviceId + ": " + e.getMessage());
+      objectName = null;
+    }
+  }
+
+  synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      logger.warning("Failed to unregister minicap metrics of " + deviceId + ": " + e.getMessage());
+    }
+    objectName = null;
+  }
+
+  @Override
+  public String getDeviceId() {
+    return deviceId;
+  }
+
+  @Override
+  public synchronized long getFramesReceived() {
+    return framesReceived;
+  }
+
+  @Override
+  public synchronized long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  @Override
+  public synchronized long getFramesPerSecond() {
+    rollTo(currentTimeSeconds());
+    return framesInLastSecond;
+  }
+
+  @Override
+  public synchronized long getBytesPerSecond() {
+    rollTo(currentTimeSeconds());
+    return bytesInLastSecond;
+  }
+
+  @Override
+  public long getFramesSent() {
+    long framesSent = closedSessionsFramesSent.get();
+    for (MinicapSessionSender sender : sessionsSupplier.get()) {
+      framesSent += sender.getSentFrames();
+    }
+    return framesSent;
+  }
+
+  @Override
+  public long getFramesDropped() {
+    long framesDropped = closedSessionsFramesDropped.get();
+    for (MinicapSessionSender sender : sessionsSupplier.get()) {
+      framesDropped += sender.getDroppedFrames();
+    }
+    return framesDropped;
+  }
+
+  @Override
+  public int getSessionCount() {
+    return sessionsSupplier.get().size();
+  }
+
+  /** Number of sessions with a frame waiting for the previous write to complete. */
+  @Override
+  public int getQueueDepth() {
+    int queueDepth = 0;
+    for (MinicapSessionSender sender : sessionsSupplier.get()) {
+      if (sender.hasPendingFrame()) {
+        queueDepth++;
+      }
+    }
+    return queueDepth;
+  }
+
+  /** Average time from reading a frame from minicap to the completion of its websocket write. */
+  @Override
+  public double getAverageSendLatencyMs() {
+    long count = sendLatencyCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    return sendLatencyTotalNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public double getMaxSendLatencyMs() {
+    return sendLatencyMaxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /** Frames sent and dropped of each open session, only exposed through the REST api. */
+  public List<SessionMetrics> getSessions() {
+    List<SessionMetrics> sessions = new ArrayList<>();
+    for (MinicapSessionSender sender : sessionsSupplier.get()) {
+      sessions.add(new SessionMetrics(sender));
+    }
+    return sessions;
+  }
+
+  /** Metrics of one websocket session. */
+  public static class SessionMetrics {
+    private final String remoteAddress;
+    private final long framesSent;
+    private final long framesDropped;
+    private final boolean waitingToSend;
+
+    SessionMetrics(MinicapSessionSender sender) {
+      this.remoteAddress = String.valueOf(sender.getSession().getRemoteAddress());
+      this.framesSent = sender.getSentFrames();
+      this.framesDropped = sender.getDroppedFrames();
+      this.waitingToSend = sender.hasPendingFrame();
+    }
+
+    public String getRemoteAddress() {
+      return remoteAddress;
+    }
+
+    public long getFramesSent() {
+      return framesSent;
+    }
+
+    public long getFramesDropped() {
+      return framesDropped;
+    }
+
+    public boolean isWaitingToSend() {
+      return waitingToSend;
+    }
+  }
+}
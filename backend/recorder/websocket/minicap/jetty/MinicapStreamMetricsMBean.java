@@ -0,0 +1,40 @@
+// Copyright 2020 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.uicd.backend.recorder.websocket.minicap.jetty;
+
+/** JMX view of the minicap stream of one device. */
+public interface MinicapStreamMetricsMBean {
+  String getDeviceId();
+
+  long getFramesReceived();
+
+  long getBytesReceived();
+
+  long getFramesPerSecond();
+
+  long getBytesPerSecond();
+
+  long getFramesSent();
+
+  long getFramesDropped();
+
+  int getSessionCount();
+
+  int getQueueDepth();
+
+  double getAverageSendLatencyMs();
+
+  double getMaxSendLatencyMs();
+}
@@ -14,21 +14,23 @@
 
 package com.google.uicd.backend.recorder.websocket.minicap.jetty;
 
-import io.netty.util.internal.ConcurrentSet;
+import java.time.Duration;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
-import org.eclipse.jetty.websocket.common.WebSocketSession;
 
 /** MinicapWebSocketHandler */
 @WebSocket
 public class MinicapWebSocketHandler {
+  // Minicap only sends frames when the screen changes, keep the idle sessions open.
+  private static final Duration IDLE_TIMEOUT = Duration.ofDays(1);
 
   @OnWebSocketClose
-  public void onClose(int statusCode, String reason) {
+  public void onClose(Session session, int statusCode, String reason) {
+    MinicapServerManager.getInstance().removeSession(session);
     System.out.println("Close: statusCode=" + statusCode + ", reason=" + reason);
   }
 
@@ -39,12 +41,8 @@ public class MinicapWebSocketHandler {
 
   @OnWebSocketConnect
   public void onConnect(Session session) {
-    Integer port = ((WebSocketSession) session).getRequestURI().getPort();
-    if (MinicapServerManager.portSessionMapping.get(port) == null) {
-      MinicapServerManager.portSessionMapping.put(port, new ConcurrentSet<>());
-    }
-    MinicapServerManager.portSessionMapping.get(port).add(session);
-    System.out.println("New session opened");
+    session.setIdleTimeout(IDLE_TIMEOUT.toMillis());
+    MinicapServerManager.getInstance().addSession(session);
   }
 
   @OnWebSocketMessage
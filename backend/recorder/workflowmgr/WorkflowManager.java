@@ -438,16 +438,15 @@ public class WorkflowManager {
   }
 
   private void saveTestHistory(
-      ActionExecutionResult actionExecutionResult, BaseAction currentAction) throws UicdException {
+      ActionExecutionResult actionExecutionResult, BaseAction currentAction) {
     TestHistoryEntity testCaseHistoryEntity = new TestHistoryEntity();
     testCaseHistoryEntity.setUuid(UUID.randomUUID().toString());
     testCaseHistoryEntity.setCreatedBy(UicdConfig.getInstance().getCurrentUser());
     testCaseHistoryEntity.setTestcaseUuid(currentAction.getActionId().toString());
-    testCaseHistoryEntity.setTestDetails(actionExecutionResult.toJson());
     testCaseHistoryEntity.setTestMsg(
         currentAction.getActionTypeString() + ": " + currentAction.getDisplay());
     testCaseHistoryEntity.setTestResult(actionExecutionResult.getPlayStatus().toString());
-    testHistoryManager.save(testCaseHistoryEntity);
+    testHistoryManager.saveAsync(testCaseHistoryEntity, actionExecutionResult);
   }
 
   public void dragStart(Integer x, Integer y) {
@@ -497,6 +496,7 @@ public class WorkflowManager {
               .get());
     }
     this.workspaceCompoundAction.childrenActions = updatedActionList;
+    this.workspaceCompoundAction.markModified();
 
     actionStorageManager.saveAction(this.workspaceCompoundAction);
   }
@@ -535,17 +535,24 @@ public class WorkflowManager {
   }
 
   public String addImage(String imgBase64Str) {
-    String uuid = UUID.randomUUID().toString();
     byte[] imgBytes = Base64.decodeBase64(imgBase64Str);
-    imageStorageManager.addImage(uuid, imgBytes);
-    return uuid;
+    return imageStorageManager.addImage(imgBytes);
   }
 
   public void deleteImage(String uuid) {
+    // Content addressed images may be shared by other actions, only images with their own uuid
+    // are deleted along with their action.
+    if (ImageStorageManager.isContentAddressed(uuid)) {
+      return;
+    }
     imageStorageManager.deleteImage(uuid);
   }
 
   public void updateImage(String uuid, String imgBase64Str) {
+    if (ImageStorageManager.isContentAddressed(uuid)) {
+      logger.warning("Content addressed image can not be updated, add a new one: " + uuid);
+      return;
+    }
     byte[] imgBytes = Base64.decodeBase64(imgBase64Str);
     imageStorageManager.updateImage(uuid, imgBytes);
   }
@@ -0,0 +1,103 @@
+# python3 - http://go/python3#lint
+"""Long lived prediction worker used by MLImageValidationAction.
+
+Starting python and loading the model takes much longer than the prediction
+itself, so the backend keeps this process alive and sends it one request per
+validation. Every message is a 4 bytes big-endian length followed by an utf-8
+json payload.
+
+Request: {"weights_path": "...", "image_path": "..."}
+Response: {"predictions": [0.9, 0.1]} or {"error": "..."}
+"""
+import os
+import struct
+import sys
+
+# Keras and tensorflow may print to stdout, which is reserved for the protocol.
+PROTOCOL_OUT = os.fdopen(os.dup(1), "wb")
+os.dup2(2, 1)
+sys.stdout = sys.stderr
+
+# pylint: disable=g-import-not-at-top,g-bad-import-order
+import argparse
+import json
+import tempfile
+from keras.preprocessing.image import load_img
+import test_model
+import train_model
+import util
+# pylint: enable=g-import-not-at-top,g-bad-import-order
+
+HEADER = struct.Struct(">I")
+
+
+def read_frame(stream):
+  """Read one request, return None when the backend closed the pipe."""
+  header = stream.read(HEADER.size)
+  if len(header) < HEADER.size:
+    return None
+  (length,) = HEADER.unpack(header)
+  payload = stream.read(length)
+  if len(payload) < length:
+    return None
+  return json.loads(payload.decode("utf-8"))
+
+
+def write_frame(stream, message):
+  """Write one response and flush it, the backend is blocked on reading it."""
+  payload = json.dumps(message).encode("utf-8")
+  stream.write(HEADER.pack(len(payload)))
+  stream.write(payload)
+  stream.flush()
+
+
+class ModelCache(object):
+  """Keeps the loaded models by weights path, weights are downloaded once."""
+
+  def __init__(self):
+    self._models = {}
+
+  def get(self, weights_path):
+    if weights_path not in self._models:
+      temp_weights = os.path.join(
+          tempfile.gettempdir(),
+          util.get_time() + "-" + weights_path.split("/")[-1])
+      test_model.download_blob(test_model.BUCKET_NAME, weights_path,
+                               temp_weights)
+      model = train_model.get_seq_model()
+      model.load_weights(temp_weights)
+      os.remove(temp_weights)
+      self._models[weights_path] = model
+    return self._models[weights_path]
+
+
+def predict(models, request):
+  """Return the prediction values of the image, each between 0 and 1."""
+  model = models.get(request["weights_path"])
+  loaded_img = load_img(
+      request["image_path"],
+      target_size=(train_model.img_width, train_model.img_height))
+  return [
+      float(prediction)
+      for prediction in model.predict(test_model.reshape_image(loaded_img))[0]
+  ]
+
+
+if __name__ == "__main__":
+  parser = argparse.ArgumentParser()
+  parser.add_argument("private_key", help="path to private key")
+  args = parser.parse_args()
+
+  # Establish credentials.
+  os.environ["GOOGLE_APPLICATION_CREDENTIALS"] = args.private_key
+
+  model_cache = ModelCache()
+  while True:
+    req = read_frame(sys.stdin.buffer)
+    if req is None:
+      break
+    try:
+      response = {"predictions": predict(model_cache, req)}
+    except Exception as e:  # pylint: disable=broad-except
+      response = {"error": str(e)}
+    write_frame(PROTOCOL_OUT, response)
@@ -230,6 +230,7 @@ export interface ActionSummaryMetaData {
   delayAfterActionMs?: number;
   deviceIndex?: number;
   forceDeviceOnChildren?: boolean;
+  playBranchesInParallel?: boolean;
   actionType?: string;
   isRawXY?: boolean;
   actionDescription?: string;
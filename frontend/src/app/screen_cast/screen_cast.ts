@@ -100,7 +100,7 @@ export class ScreenCastComponent implements OnInit, OnDestroy, AfterViewInit {
     ctx.fill();
   }
 
-  initFEMiniCap(port: number) {
+  initFEMiniCap(port: number, deviceId: string) {
     // For unit test in the main page, screen cast does not contains native
     // elements, need do a check here
     if (!this.phoneScreen) {
@@ -124,7 +124,7 @@ export class ScreenCastComponent implements OnInit, OnDestroy, AfterViewInit {
     if (this.currentStream) {
       this.currentStream.unsubscribe();
     }
-    this.currentStream = this.minicapService.connect(port)
+    this.currentStream = this.minicapService.connect(port, deviceId)
                              .pipe(takeUntil(this.destroyed))
                              .subscribe((output: string) => {
                                let blob =
@@ -427,7 +427,7 @@ export class ScreenCastComponent implements OnInit, OnDestroy, AfterViewInit {
     this.devicesManagerService.getCurrentDeviceSubject()
         .pipe(takeUntil(this.destroyed))
         .subscribe((d: DeviceInfo) => {
-          this.initFEMiniCap(d.minicapPort);
+          this.initFEMiniCap(d.minicapPort, d.deviceId);
         });
 
     this.controlMessageService.getControlMessageSubject()
@@ -18,6 +18,7 @@ import {map} from 'rxjs/operators';
 import {webSocket} from 'rxjs/webSocket';
 
 const MINICAP_WEBSOCKET_URL = 'ws://localhost:';
+const MINICAP_WEBSOCKET_PATH = '/minicap/';
 
 /**
  * MinicapService to get the log information form the backend through websocket
@@ -26,8 +27,9 @@ const MINICAP_WEBSOCKET_URL = 'ws://localhost:';
 export class MinicapService {
   private messages: Observable<string> = EMPTY;
 
-  connect(port: number): Observable<string> {
-    const fullURL = `${MINICAP_WEBSOCKET_URL}${port}`;
+  connect(port: number, deviceId: string): Observable<string> {
+    const fullURL =
+        `${MINICAP_WEBSOCKET_URL}${port}${MINICAP_WEBSOCKET_PATH}${deviceId}`;
     console.log('minicap service connected! port number:' + fullURL);
     this.messages = webSocket({url: fullURL, deserializer: msg => msg})
                         .asObservable()